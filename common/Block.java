@@ -0,0 +1,71 @@
+package common;
+
+import java.io.*;
+
+// Decoded bytes of one block, read record by record
+class Block {
+	long offset;	// Of the block header
+	long end;		// Of the block
+	private byte[] bytes;
+	private int position = 0;
+
+	Block(long offset, long end, byte[] bytes) {
+		this.offset = offset;
+		this.end = end;
+		this.bytes = bytes;
+	}
+
+	boolean hasNext() {
+		return this.position < this.bytes.length;
+	}
+
+	int position() {
+		return this.position;
+	}
+
+	CrawlResult next() throws IOException {
+		try {
+			int twitterId = this.readVarint();
+			ResultCode code = ResultCode.fromInt(this.bytes[this.position++]);
+			if (code != ResultCode.SUCCESS && code != ResultCode.PARTIAL) {
+				return new CrawlResult(twitterId, code);
+			}
+			int[] followers = new int[this.readVarint()];
+			int previous = 0;
+			for (int i = 0; i < followers.length; i++) {
+				previous += this.readVarint();
+				followers[i] = previous;
+			}
+			return new CrawlResult(twitterId, code, followers);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed record in block at " + this.offset);
+		}
+	}
+
+	// Skip a record, returning its id
+	int skip() throws IOException {
+		try {
+			int twitterId = this.readVarint();
+			ResultCode code = ResultCode.fromInt(this.bytes[this.position++]);
+			if (code == ResultCode.SUCCESS || code == ResultCode.PARTIAL) {
+				for (int count = this.readVarint(); count > 0; count--) {
+					while (this.bytes[this.position++] < 0) {}
+				}
+			}
+			return twitterId;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed record in block at " + this.offset);
+		}
+	}
+
+	private int readVarint() {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = this.bytes[this.position++];
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+}
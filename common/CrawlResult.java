@@ -23,4 +23,5 @@ public class CrawlResult implements Serializable {
 	public int getTwitterId() { return this.twitterId; }
 	public int[] getFollowers() { return this.followers; }
 	public boolean isSuccessful() { return this.result == ResultCode.SUCCESS; }
+	public boolean isPartial() { return this.result == ResultCode.PARTIAL; }
 }
\ No newline at end of file
@@ -0,0 +1,293 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Compact crawl state store, four bits per twitter id
+// The id space is split into lazily allocated pages, so memory tracks the ids actually seen
+// Pages live on the heap by default, or in a memory-mapped sparse file when given a file name
+// get, set, seen, compareAndSet and complete are thread safe - each page is guarded by one of STRIPES locks, so threads working on
+// different ids rarely meet - but list, save and load need the store to be quiet
+public class CrawlState {
+	// States - four bits per id leaves room for more
+	public static final int NONE = 0;
+	public static final int PENDING = 1;
+	public static final int CRAWLED = 2;
+	public static final int FAILED = 3;
+	private static final int STATE_COUNT = 16;
+
+	// Page layout - 2^16 ids per page, 16 ids per long
+	private static final int BITS = 4;
+	private static final int IDS_PER_LONG = 64 / BITS;
+	private static final int PAGE_SHIFT = 16;
+	private static final int PAGE_IDS = 1 << PAGE_SHIFT;
+	private static final int PAGE_LONGS = PAGE_IDS / IDS_PER_LONG;
+	private static final int PAGE_COUNT = 1 << (32 - PAGE_SHIFT);
+	private static final int STRIPES = 256;
+
+	private LongBuffer[] pages = new LongBuffer[PAGE_COUNT];
+	private AtomicLongArray counts = new AtomicLongArray(STATE_COUNT);
+	private AtomicInteger pageCount = new AtomicInteger();
+	private Object[] locks = new Object[STRIPES];
+	{
+		for (int i = 0; i < STRIPES; i++) {
+			this.locks[i] = new Object();
+		}
+	}
+
+	// Memory-mapped backing, null when on the heap
+	private FileChannel channel;
+
+	// Heap backed store
+	public CrawlState() {
+		this.channel = null;
+	}
+
+	// Memory-mapped store - the file is sparse, so only touched pages take disk space
+	public CrawlState(String fileName) {
+		try {
+			this.channel = new RandomAccessFile(fileName, "rw").getChannel();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Single lookup for the state of an id
+	public int get(int twitterId) {
+		int pageIndex = twitterId >>> PAGE_SHIFT;
+		synchronized (this.locks[pageIndex & (STRIPES - 1)]) {
+			return this.getLocked(pageIndex, twitterId);
+		}
+	}
+
+	// Set the state of an id, returning the previous state
+	public int set(int twitterId, int state) {
+		int pageIndex = twitterId >>> PAGE_SHIFT;
+		synchronized (this.locks[pageIndex & (STRIPES - 1)]) {
+			return this.setLocked(pageIndex, twitterId, state);
+		}
+	}
+
+	// Set the state of an id only if it is still expected, returning whether it was set
+	public boolean compareAndSet(int twitterId, int expected, int state) {
+		int pageIndex = twitterId >>> PAGE_SHIFT;
+		synchronized (this.locks[pageIndex & (STRIPES - 1)]) {
+			if (this.getLocked(pageIndex, twitterId) != expected) {
+				return false;
+			}
+			this.setLocked(pageIndex, twitterId, state);
+			return true;
+		}
+	}
+
+	// Set a final state - CRAWLED or FAILED - unless the id already has one, returning whether it was set
+	// A reclaimed id may come back from two workers at once, and only the first may count
+	public boolean complete(int twitterId, int state) {
+		int pageIndex = twitterId >>> PAGE_SHIFT;
+		synchronized (this.locks[pageIndex & (STRIPES - 1)]) {
+			if (isFinal(this.getLocked(pageIndex, twitterId))) {
+				return false;
+			}
+			this.setLocked(pageIndex, twitterId, state);
+			return true;
+		}
+	}
+
+	public static boolean isFinal(int state) {
+		return (state == CRAWLED || state == FAILED);
+	}
+
+	private int getLocked(int pageIndex, int twitterId) {
+		LongBuffer page = this.pages[pageIndex];
+		if (page == null) {
+			return NONE;
+		}
+		int index = twitterId & (PAGE_IDS - 1);
+		int shift = (index % IDS_PER_LONG) * BITS;
+		return (int)((page.get(index / IDS_PER_LONG) >>> shift) & (STATE_COUNT - 1));
+	}
+
+	private int setLocked(int pageIndex, int twitterId, int state) {
+		LongBuffer page = this.pages[pageIndex];
+		if (page == null) {
+			if (state == NONE) {
+				return NONE;
+			}
+			page = this.allocatePage(pageIndex);
+		}
+		int index = twitterId & (PAGE_IDS - 1);
+		int shift = (index % IDS_PER_LONG) * BITS;
+		long word = page.get(index / IDS_PER_LONG);
+		int previous = (int)((word >>> shift) & (STATE_COUNT - 1));
+		if (previous != state) {
+			word = (word & ~((long)(STATE_COUNT - 1) << shift)) | ((long)state << shift);
+			page.put(index / IDS_PER_LONG, word);
+			this.counts.decrementAndGet(previous);
+			this.counts.incrementAndGet(state);
+		}
+		return previous;
+	}
+
+	// Have we already seen this id in any state?
+	public boolean seen(int twitterId) {
+		return (this.get(twitterId) != NONE);
+	}
+
+	// Number of ids in a state - NONE is not counted
+	public long count(int state) {
+		return (state == NONE) ? 0 : this.counts.get(state);
+	}
+
+	// All ids currently in a state
+	public int[] list(int state) {
+		int[] retval = new int[(int)this.count(state)];
+		int found = 0;
+		for (int pageIndex = 0; pageIndex < PAGE_COUNT && found < retval.length; pageIndex++) {
+			LongBuffer page = this.pages[pageIndex];
+			if (page != null) {
+				for (int i = 0; i < PAGE_LONGS; i++) {
+					long word = page.get(i);
+					if (word != 0) {
+						for (int slot = 0; slot < IDS_PER_LONG; slot++) {
+							if (((word >>> (slot * BITS)) & (STATE_COUNT - 1)) == state) {
+								retval[found++] = (pageIndex << PAGE_SHIFT) | (i * IDS_PER_LONG + slot);
+							}
+						}
+					}
+				}
+			}
+		}
+		return retval;
+	}
+
+	// Write every allocated page
+	public void save(DataOutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(PAGE_LONGS * 8);
+		out.writeInt(this.pageCount.get());
+		for (int pageIndex = 0; pageIndex < PAGE_COUNT; pageIndex++) {
+			LongBuffer page = this.pages[pageIndex];
+			if (page != null) {
+				buffer.clear();
+				page.rewind();
+				buffer.asLongBuffer().put(page);
+				out.writeInt(pageIndex);
+				out.write(buffer.array());
+			}
+		}
+	}
+
+	// Read pages written by save into an empty store
+	public void load(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[PAGE_LONGS * 8];
+		int saved = in.readInt();
+		for (int i = 0; i < saved; i++) {
+			int pageIndex = in.readInt();
+			in.readFully(bytes);
+			LongBuffer page = this.pages[pageIndex];
+			if (page == null) {
+				page = this.allocatePage(pageIndex);
+			}
+			page.rewind();
+			page.put(ByteBuffer.wrap(bytes).asLongBuffer());
+		}
+		this.counts = new AtomicLongArray(STATE_COUNT);
+		for (int pageIndex = 0; pageIndex < PAGE_COUNT; pageIndex++) {
+			if (this.pages[pageIndex] != null) {
+				this.recount(this.pages[pageIndex]);
+			}
+		}
+	}
+
+	// Approximate footprint of the store in bytes
+	public long memoryUsage() {
+		return (long)this.pageCount.get() * PAGE_LONGS * 8 + (long)PAGE_COUNT * 8;
+	}
+
+	public void close() {
+		try {
+			this.pages = new LongBuffer[PAGE_COUNT];
+			if (this.channel != null) {
+				this.channel.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	private LongBuffer allocatePage(int pageIndex) {
+		LongBuffer page = null;
+		try {
+			if (this.channel == null) {
+				page = LongBuffer.wrap(new long[PAGE_LONGS]);
+			} else {
+				long pageBytes = (long)PAGE_LONGS * 8;
+				page = this.channel.map(FileChannel.MapMode.READ_WRITE, pageIndex * pageBytes, pageBytes).asLongBuffer();
+				this.recount(page);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		this.pages[pageIndex] = page;
+		this.pageCount.incrementAndGet();
+		return page;
+	}
+
+	// A mapped page may already hold states from a previous run
+	private void recount(LongBuffer page) {
+		for (int i = 0; i < PAGE_LONGS; i++) {
+			long word = page.get(i);
+			if (word != 0) {
+				for (int shift = 0; shift < 64; shift += BITS) {
+					this.counts.incrementAndGet((int)((word >>> shift) & (STATE_COUNT - 1)));
+				}
+			}
+		}
+	}
+
+	// Testing program - memory and throughput against the old HashSet<Integer> triple
+	public static void main(String[] args) {
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+		Random random = new Random(42);
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++) { ids[i] = random.nextInt(200000000); }
+		Runtime runtime = Runtime.getRuntime();
+
+		runtime.gc();
+		long before = runtime.totalMemory() - runtime.freeMemory();
+		long begin = System.currentTimeMillis();
+		HashSet<Integer> crawled = new HashSet<Integer>();
+		HashSet<Integer> pending = new HashSet<Integer>();
+		HashSet<Integer> failed = new HashSet<Integer>();
+		for (int id : ids) {
+			if (!(crawled.contains(id) || pending.contains(id) || failed.contains(id))) {
+				pending.add(id);
+				pending.remove(id);
+				crawled.add(id);
+			}
+		}
+		runtime.gc();
+		long setMemory = runtime.totalMemory() - runtime.freeMemory() - before;
+		System.out.println("HashSet: " + (System.currentTimeMillis() - begin) + " ms, " + (setMemory >> 20) + " MB for " + crawled.size() + " ids");
+		crawled = pending = failed = null;
+
+		runtime.gc();
+		begin = System.currentTimeMillis();
+		CrawlState state = new CrawlState();
+		for (int id : ids) {
+			if (!state.seen(id)) {
+				state.set(id, PENDING);
+				state.set(id, CRAWLED);
+			}
+		}
+		System.out.println("CrawlState: " + (System.currentTimeMillis() - begin) + " ms, " + (state.memoryUsage() >> 20) + " MB for " + state.count(CRAWLED) + " ids");
+	}
+}
@@ -1,151 +1,219 @@
 package common;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.function.*;
 
-// This file will need to have a segmented queue
+// Segmented queue of ints backed by fixed-size memory-mapped segment files
+// The writer appends to the tail segment, the reader walks the head segments,
+// and fully consumed segments are deleted rather than copied
+// A named queue can be reattached after a restart from a saved position,
+// so it keeps consumed segments until releaseConsumed() is called
 // This is NOT thread safe!
 public class IntFileQueue {
-	private String fileName;
-	
-	private DataInputStream front;
-	private DataOutputStream back;
-	
-	private int count;
-	private int dequeueCount;
-	private int DEQUEUE_THRESHOLD = 10000000;
-	
+	private String baseName;
+	private int SEGMENT_INTS = 1 << 22;	// 16MB per segment
+
+	// Head (reader) and tail (writer) positions
+	private long headSegment = 0;
+	private long tailSegment = 0;
+	private IntBuffer front;
+	private IntBuffer back;
+	private MappedByteBuffer backMap;
+
+	// Lowest segment not yet deleted, and whether deletion waits for releaseConsumed()
+	private long releasedSegment = 0;
+	private boolean durable;
+
+	private long count;
+
 	public IntFileQueue() {
-		this.fileName = "queue/" + Long.toString((new Date()).getTime());
+		this("queue/" + Long.toString((new Date()).getTime()), false);
+	}
+
+	// Named queue whose position can be saved and restored
+	public IntFileQueue(String baseName) {
+		this(baseName, true);
+	}
+
+	private IntFileQueue(String baseName, boolean durable) {
+		this.baseName = baseName;
+		this.durable = durable;
 		this.count = 0;
-		try {
-			this.back = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.fileName, true)));
-			this.front = new DataInputStream(new BufferedInputStream(new FileInputStream(this.fileName)));			
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
-		}	
+		this.backMap = this.mapSegment(this.tailSegment);
+		this.back = this.backMap.asIntBuffer();
+		this.front = this.back.duplicate();
 	}
-	
-	public int size() {
+
+	public long size() {
 		return this.count;
 	}
-	
+
 	public int dequeue() {
 		int retval = 0;
 		if (!this.isEmpty()) {
-			try {
-				retval = this.front.readInt();
-				this.count--;
-				this.dequeueCount++;
-			} 
-			catch (Exception e) {
-				e.printStackTrace();
-				System.exit(-1);
-			}			
+			this.advanceFront();
+			retval = this.front.get();
+			this.count--;
 		}
-		this.reconstructFile();
 		return retval;
 	}
-	
+
 	public int[] dequeue(int max) {
-		int readCount = Math.min(max, this.count);
+		int readCount = (int)Math.min(max, this.count);
 		int[] retval = new int[readCount];
-		try {
-			for (int i = 0; i < readCount; i++) { retval[i] = this.front.readInt();	}
-			this.count -= readCount;
-			this.dequeueCount += readCount;
-		} 
-		catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
+		int offset = 0;
+		while (offset < readCount) {
+			this.advanceFront();
+			int chunk = Math.min(readCount - offset, this.front.remaining());
+			this.front.get(retval, offset, chunk);
+			offset += chunk;
 		}
-		this.reconstructFile();
+		this.count -= readCount;
 		return retval;
 	}
-		
-	// Writes one integer - try to write in batch instead
+
 	public void enqueue(int item) {
-		try {
-			this.back.writeInt(item);
-			this.back.flush();
-			this.count++;
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
-		}
-	}	
-	
+		this.advanceBack();
+		this.back.put(item);
+		this.count++;
+	}
+
 	public void enqueue(int[] items) {
-		try {
-			for (int item: items) { this.back.writeInt(item); }
-			this.back.flush();
-			this.count += items.length;
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
+		int offset = 0;
+		while (offset < items.length) {
+			this.advanceBack();
+			int chunk = Math.min(items.length - offset, this.back.remaining());
+			this.back.put(items, offset, chunk);
+			offset += chunk;
 		}
+		this.count += items.length;
 	}
-	
+
 	public void enqueue(LinkedList<Integer> items) {
-		try {
-			for (int item: items) { this.back.writeInt(item); }
-			this.back.flush();
-			this.count += items.size();
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
+		for (int item : items) {
+			this.advanceBack();
+			this.back.put(item);
 		}
+		this.count += items.size();
 	}
-	
+
 	public boolean isEmpty() {
 		return (this.count == 0);
 	}
-	
+
+	// Pass every queued item to action, head first, without dequeuing any
+	public void forEach(IntConsumer action) {
+		for (long segment = this.headSegment; segment <= this.tailSegment; segment++) {
+			IntBuffer items;
+			if (segment == this.tailSegment) {
+				items = this.back.duplicate();
+			} else if (segment == this.headSegment) {
+				items = this.front.duplicate();
+			} else {
+				items = this.mapSegment(segment).asIntBuffer();
+			}
+			int end = (segment == this.tailSegment) ? this.back.position() : SEGMENT_INTS;
+			for (int i = (segment == this.headSegment) ? this.front.position() : 0; i < end; i++) {
+				action.accept(items.get(i));
+			}
+		}
+	}
+
+	// Write the head and tail positions
+	public void writePosition(DataOutputStream out) throws IOException {
+		out.writeLong(this.headSegment);
+		out.writeInt(this.front.position());
+		out.writeLong(this.tailSegment);
+		out.writeInt(this.back.position());
+	}
+
+	// Reattach to the segments at a position written by writePosition
+	public void readPosition(DataInputStream in) throws IOException {
+		long head = in.readLong();
+		int headOffset = in.readInt();
+		long tail = in.readLong();
+		int tailOffset = in.readInt();
+
+		this.tailSegment = tail;
+		this.backMap = this.mapSegment(tail);
+		this.back = this.backMap.asIntBuffer();
+		this.back.position(tailOffset);
+		this.headSegment = head;
+		this.front = (head == tail) ? this.back.duplicate() : this.mapSegment(head).asIntBuffer();
+		this.front.position(headOffset);
+		this.releasedSegment = head;
+		this.count = (tail - head) * SEGMENT_INTS + tailOffset - headOffset;
+	}
+
+	// Push the tail segment to disk - earlier segments are forced when they fill up
+	public void force() {
+		this.backMap.force();
+	}
+
+	// Delete the segments the reader has finished with
+	public void releaseConsumed() {
+		while (this.releasedSegment < this.headSegment) {
+			(new File(this.segmentName(this.releasedSegment))).delete();
+			this.releasedSegment++;
+		}
+	}
+
+	// Drop the mappings and delete every remaining segment
 	public void close() {
+		this.front = null;
+		this.back = null;
+		this.backMap = null;
+		for (long segment = this.releasedSegment; segment <= this.tailSegment; segment++) {
+			(new File(this.segmentName(segment))).delete();
+		}
+	}
+
+	// Convenience method to tell us a segment file name
+	private String segmentName(long segment) {
+		return (this.baseName + "_" + segment);
+	}
+
+	private MappedByteBuffer mapSegment(long segment) {
+		MappedByteBuffer retval = null;
 		try {
-			this.front.close();
-			this.back.close();
-			File f = new File(this.fileName);
-			f.delete();
-		} 
+			RandomAccessFile file = new RandomAccessFile(this.segmentName(segment), "rw");
+			retval = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)SEGMENT_INTS * 4);
+			file.close();
+		}
 		catch (IOException e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		return retval;
+	}
+
+	// Start a new tail segment once the current one is full
+	private void advanceBack() {
+		if (!this.back.hasRemaining()) {
+			if (this.durable) {
+				this.backMap.force();
+			}
+			this.tailSegment++;
+			this.backMap = this.mapSegment(this.tailSegment);
+			this.back = this.backMap.asIntBuffer();
+		}
 	}
-	
-	private void reconstructFile() {
-		if (this.dequeueCount > DEQUEUE_THRESHOLD) {
-			try {
-				// Create a new temporary file and copy the current file into it from the current position
-				String newFile = this.fileName = Long.toString((new Date()).getTime());
-				DataOutputStream newBack = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile, true)));
-				DataInputStream newFront = new DataInputStream(new BufferedInputStream(new FileInputStream(newFile)));
-			
-				int readCount = this.count;
-				while (readCount-- > 0) { newBack.writeInt(this.front.readInt()); }
-				newBack.flush();
-				
-				this.front.close();
-				this.back.close();				
-				this.front = newFront;
-				this.back = newBack;
-				
-				File f = new File(this.fileName);
-				f.delete();
-				this.fileName = newFile;
-				
-				// Reset the dequeue count
-				this.dequeueCount = 0;
+
+	// Move to the next head segment once the current one is consumed
+	private void advanceFront() {
+		if (!this.front.hasRemaining()) {
+			this.headSegment++;
+			if (!this.durable) {
+				this.releaseConsumed();
 			}
-			catch (IOException e) {
-				e.printStackTrace();
-				System.exit(-1);
+			if (this.headSegment == this.tailSegment) {
+				this.front = this.back.duplicate();
+				this.front.position(0);
+			} else {
+				this.front = this.mapSegment(this.headSegment).asIntBuffer();
 			}
 		}
 	}
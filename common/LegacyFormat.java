@@ -0,0 +1,262 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// The fixed width format logs were written in before SegmentFormat - .txt segments, .txt.gz once rolled
+//	success log record: int twitterId, int result code, int follower count, int followers
+//	failure log record: int twitterId, int result code
+// Whether a record has followers depends on the log it is in, never on its code - the original ResultCode.toInt()
+// fell through every case and wrote 4 (FAILED) for every result, successful or not. So in a success log the code
+// only tells a PARTIAL chunk from the SUCCESS records around it, and anything else is a SUCCESS
+// The controller names its logs base_s and base_f, so a failure segment is told by its file name
+// Rolled segments were gzipped a 4KB buffer at a time, and the last, short read was written out whole, so until
+// the inline compression every .txt.gz ends in up to 4KB of stale bytes - what the buffer held from the read before
+public class LegacyFormat {
+	private static final int PARTIAL = ResultCode.PARTIAL.toInt();
+	private static final int GZIP_BUFFER = 4096;
+
+	// Whether a segment file is part of a failure log, and so holds records without followers
+	public static boolean isFailureLog(String fileName) {
+		String name = (new File(fileName)).getName();
+		int end = name.indexOf(".txt");
+		int segment = name.lastIndexOf('_', (end < 0) ? name.length() : end);
+		return segment >= 2 && name.startsWith("_f", segment - 2);
+	}
+
+	// Result code of a record, as stored
+	public static ResultCode code(int stored, boolean followers) {
+		if (!followers) {
+			return ResultCode.fromInt(stored);
+		}
+		return (stored == PARTIAL) ? ResultCode.PARTIAL : ResultCode.SUCCESS;
+	}
+
+	// End of the record at position, or -1 if it runs past limit - a torn tail
+	public static int recordEnd(ByteBuffer bytes, int position, int limit, boolean followers) {
+		if (position + 8 > limit) {
+			return -1;
+		}
+		if (!followers) {
+			return position + 8;
+		}
+		if (position + 12 > limit) {
+			return -1;
+		}
+		int count = bytes.getInt(position + 8);
+		long end = position + 12 + 4L * count;
+		return (count < 0 || end > limit) ? -1 : (int)end;
+	}
+
+	// End of the records in a mapped segment - the end of the last whole record, short of a torn tail,
+	// or of the stale tail a rolled segment was gzipped with
+	public static int dataEnd(ByteBuffer bytes, boolean followers, boolean rolled) {
+		int limit = bytes.limit();
+		int position = 0;
+		while (position < limit) {
+			if (rolled && position > limit - GZIP_BUFFER && stale(bytes, position, limit)) {
+				break;
+			}
+			int end = recordEnd(bytes, position, limit, followers);
+			if (end < 0) {
+				break;
+			}
+			position = end;
+		}
+		return position;
+	}
+
+	// Whether bytes [position, limit) are what the gzip buffer still held - the same bytes 4KB before,
+	// or zeros in the first buffer - which can only be if the segment inflates to whole buffers
+	private static boolean stale(ByteBuffer bytes, int position, int limit) {
+		if (limit % GZIP_BUFFER != 0) {
+			return false;
+		}
+		for (int i = position; i < limit; i++) {
+			if (bytes.get(i) != ((i >= GZIP_BUFFER) ? bytes.get(i - GZIP_BUFFER) : 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The record at position, which dataEnd has found whole
+	public static CrawlResult record(ByteBuffer bytes, int position, boolean followers) {
+		int twitterId = bytes.getInt(position);
+		ResultCode code = code(bytes.getInt(position + 4), followers);
+		if (!followers) {
+			return new CrawlResult(twitterId, code);
+		}
+		int[] ids = new int[bytes.getInt(position + 8)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = bytes.getInt(position + 12 + 4 * i);
+		}
+		return new CrawlResult(twitterId, code, ids);
+	}
+
+	// Map a segment read-only - a .txt.gz is inflated once into a temporary file, and that is mapped,
+	// so the records never sit on the heap
+	public static ByteBuffer map(String fileName) throws IOException {
+		File file = new File(fileName);
+		File temp = null;
+		if (fileName.endsWith(".gz")) {
+			temp = File.createTempFile("segment", ".txt");
+			temp.deleteOnExit();
+			InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int read;
+				try {
+					while ((read = in.read(buffer)) > 0) {
+						out.write(buffer, 0, read);
+					}
+				} catch (EOFException e) {
+					// Torn tail - keep what was read
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+			file = temp;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Segment too large to map: " + channel.size() + " bytes");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+			if (temp != null) {
+				temp.delete();	// The mapping outlives the name
+			}
+		}
+	}
+
+	// Write a result exactly as the original SegmentedLogger.writeResult did, fall-through code and all
+	static void writeOriginal(DataOutputStream out, CrawlResult result) throws IOException {
+		out.writeInt(result.getTwitterId());
+		out.writeInt(4);
+		if (result.isSuccessful()) {
+			out.writeInt(result.getFollowers().length);
+			for (int followerId : result.getFollowers()) {
+				out.writeInt(followerId);
+			}
+		}
+	}
+
+	// Gzip a segment exactly as the original GzipFileTask did, stale tail and all
+	static void gzipOriginal(String fileName) throws IOException {
+		FileInputStream in = new FileInputStream(fileName);
+		GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(fileName + ".gz"));
+		byte[] buff = new byte[4096];
+		while (in.read(buff) > 0) {	out.write(buff); }
+		in.close();
+		out.finish();
+		out.close();
+	}
+
+	// Testing program - read logs written the original way back through SegmentReader and SegmentScan
+	// With no arguments a success and a failure log are written the way the first controller wrote them and checked,
+	// otherwise the given logs are read
+	// Usage: LegacyFormat [baseName...]
+	public static void main(String[] args) throws IOException {
+		ArrayList<CrawlResult> written = null;
+		if (args.length == 0) {
+			String baseName = System.getProperty("java.io.tmpdir") + File.separator + "legacy_" + System.currentTimeMillis();
+			Random random = new Random(42);
+			written = new ArrayList<CrawlResult>();
+			DataOutputStream success = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(baseName + "_s_0.txt")));
+			DataOutputStream failure = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(baseName + "_f_0.txt")));
+			for (int i = 0; i < 20000; i++) {
+				CrawlResult result;
+				if (random.nextInt(10) == 0) {
+					result = new CrawlResult(1 + random.nextInt(1000000), ResultCode.NOT_AUTHORIZED);
+					writeOriginal(failure, result);
+				} else {
+					int[] followers = new int[random.nextInt(10) == 0 ? 0 : random.nextInt(500)];
+					for (int j = 0; j < followers.length; j++) {
+						followers[j] = random.nextInt(1000000);
+					}
+					result = new CrawlResult(1 + random.nextInt(1000000), ResultCode.SUCCESS, followers);
+					writeOriginal(success, result);
+				}
+				written.add(result);
+			}
+			success.close();
+			failure.close();
+
+			// The rolled segment form of the success log as well
+			gzipOriginal(baseName + "_s_0.txt");
+			(new File(baseName + "_s_0.txt.gz")).renameTo(new File(baseName + "_g_0.txt.gz"));
+			args = new String[] { baseName + "_s", baseName + "_f", baseName + "_g" };
+		}
+
+		boolean ok = true;
+		HashMap<String, long[]> sums = new HashMap<String, long[]>();
+		for (String baseName : args) {
+			// Count, successes and a checksum over ids, codes and followers
+			long[] read = new long[3];
+			for (String fileName : SegmentReader.segments(baseName)) {
+				SegmentReader reader = SegmentReader.open(fileName);
+				CrawlResult result;
+				while ((result = reader.next()) != null) {
+					add(read, result.getTwitterId(), result.getResult(), result.getFollowers());
+				}
+				reader.close();
+			}
+			sums.put(baseName.substring(baseName.length() - 2), read);
+			System.out.println(baseName + ": " + read[0] + " results, " + read[1] + " successful");
+
+			// The same again through views
+			long[] scanned = new long[3];
+			int[] followers = new int[0];
+			Iterator<ResultView> views = SegmentScan.stream(baseName).sequential().iterator();
+			while (views.hasNext()) {
+				ResultView view = views.next();
+				if (followers.length != view.getFollowerCount()) {
+					followers = new int[view.getFollowerCount()];
+				}
+				view.getFollowers(followers);
+				add(scanned, view.getTwitterId(), view.getResult(), followers);
+			}
+			boolean same = Arrays.equals(read, scanned);
+			ok &= same;
+			System.out.println(baseName + ": scan " + (same ? "matches" : "DOES NOT MATCH") + " the reader");
+		}
+
+		if (written != null) {
+			long[] success = new long[3];
+			long[] failure = new long[3];
+			for (CrawlResult result : written) {
+				if (result.isSuccessful()) {
+					add(success, result.getTwitterId(), result.getResult(), result.getFollowers());
+				} else {
+					// Every failure was written as 4, so it can only come back as FAILED
+					add(failure, result.getTwitterId(), ResultCode.FAILED, result.getFollowers());
+				}
+			}
+			boolean same = Arrays.equals(success, sums.get("_s")) && Arrays.equals(success, sums.get("_g")) && Arrays.equals(failure, sums.get("_f"));
+			ok &= same;
+			System.out.println("Read back " + (same ? "matches" : "DOES NOT MATCH") + " what was written");
+		}
+		System.out.println(ok ? "OK" : "FAILED");
+	}
+
+	private static void add(long[] sums, int twitterId, ResultCode code, int[] followers) {
+		sums[0]++;
+		if (code == ResultCode.SUCCESS) {
+			sums[1]++;
+		}
+		long sum = (long)twitterId * 17 + code.toInt() * 31;
+		for (int followerId : followers) {
+			sum = sum * 7 + followerId;
+		}
+		sums[2] += sum;
+	}
+}
@@ -28,7 +28,7 @@ public class Logger {
 		this.logMessage(message);
 	}
 	
-	private void logMessage(String message) {
+	private synchronized void logMessage(String message) {
 		try {
 			System.out.println(message);
 			this.writer.println(message);
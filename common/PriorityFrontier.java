@@ -0,0 +1,459 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+// Frontier of ids to crawl, ordered by a pluggable score rather than first in first out
+// Scores fall into BUCKETS priority buckets, each a durable IntFileQueue, so the frontier spills to disk like the
+// FIFO queue did and holds tens of millions of ids - dequeue drains the highest non-empty bucket first
+// Per id, one byte holds how often it was discovered (saturating at 15) and its current bucket, in lazily mapped
+// pages of a sparse file like a mapped CrawlState, so it costs no heap and only touched pages take disk space - it is
+// saved with the checkpoint and restored over the file on resume - an id already known is never written again unless
+// its score rises, so the buckets hold each id once plus its moves up
+// A moved id's old entry is left behind, and skipped by dequeue since the byte says it lives higher - size() counts
+// live ids only. The checkpoint's bytes are older than the buckets a journal commit reattaches to, so on resume every
+// id's byte is raised to the highest bucket it has an entry in, and the live count is taken from the entries
+// An id only moves up, so it leaves at most BUCKETS - 1 stale entries, and once a bucket's stale entries outnumber
+// its live ones (and COMPACT_MIN) it is compacted - COMPACT_STEP entries per discovery are passed from its head to
+// its tail, dropping the stale ones, so the caller never waits on a whole rewrite and the segments passed over are
+// released with the next commit like any consumed ones. One bucket is compacted at a time, so each holds about
+// twice its live ids plus COMPACT_MIN at most, and each stale entry costs one more read and write at most
+// This is NOT thread safe!
+public class PriorityFrontier {
+	public static final int BUCKETS = 16;
+
+	// Bucket for an id, from 0 (crawled last) to BUCKETS - 1 (crawled first)
+	// discoveries is how often it has been seen, including this time, and degree is the follower count
+	// of the account it was just found under - ids from reclaims and failures keep the bucket they had
+	public interface Score {
+		int bucket(int discoveries, int degree);
+	}
+
+	// Plain breadth first order, as the old FIFO queue
+	public static final Score FIFO = new Score() {
+		public int bucket(int discoveries, int degree) { return 0; }
+	};
+
+	// Ids found under many crawled accounts first
+	public static final Score DISCOVERIES = new Score() {
+		public int bucket(int discoveries, int degree) { return Math.min(BUCKETS - 1, discoveries - 1); }
+	};
+
+	// Ids found under small accounts first, on a log scale - a bot's or celebrity's thousands of followers
+	// are mostly low value, while the followers of an ordinary account are its social circle
+	public static final Score DEGREE = new Score() {
+		public int bucket(int discoveries, int degree) {
+			return Math.max(0, BUCKETS - 1 - (32 - Integer.numberOfLeadingZeros(degree)));
+		}
+	};
+
+	// Score by name, from -Dfrontier.score: fifo, discoveries or degree
+	public static Score score(String name) {
+		if ("fifo".equals(name)) return FIFO;
+		if ("degree".equals(name)) return DEGREE;
+		return DISCOVERIES;
+	}
+
+	// Page layout of the per id bytes - count in the high nibble, bucket in the low one
+	private static final int PAGE_SHIFT = 16;
+	private static final int PAGE_IDS = 1 << PAGE_SHIFT;
+	private static final int PAGE_COUNT = 1 << (32 - PAGE_SHIFT);
+	private static final long COMPACT_MIN = 1 << 16;
+	private static final int COMPACT_STEP = 1024;
+
+	private IntFileQueue[] buckets = new IntFileQueue[BUCKETS];
+	private ByteBuffer[] pages = new ByteBuffer[PAGE_COUNT];
+	private FileChannel channel;
+	private Score score;
+	private long live = 0;
+	private long moved = 0;
+	private long stale = 0;
+	private long compactions = 0;
+	private long[] staleEntries = new long[BUCKETS];	// Per bucket, left behind by moves and not yet dropped
+	private int compacting = -1;	// Bucket being compacted, or -1
+	private long compactRemaining = 0;	// Entries at its head still to pass over
+
+	public PriorityFrontier(String baseName, Score score) {
+		this.score = score;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			this.buckets[bucket] = new IntFileQueue(baseName + "_" + bucket);
+		}
+		try {
+			// Whatever a previous run left is stale - a resume loads the checkpoint's pages over it
+			this.channel = new RandomAccessFile(baseName + "_meta", "rw").getChannel();
+			this.channel.truncate(0);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Ids waiting to be dequeued, without the stale entries moved ids left behind
+	public long size() {
+		return Math.max(0, this.live);
+	}
+
+	// Entries over every bucket, stale ones included
+	public long entryCount() {
+		long entries = 0;
+		for (IntFileQueue bucket : this.buckets) {
+			entries += bucket.size();
+		}
+		return entries;
+	}
+
+	public boolean isEmpty() {
+		return (this.entryCount() == 0);
+	}
+
+	// How many times an id moved up to a higher bucket, how many of the entries it left were skipped or compacted
+	// away, and how many bucket compactions finished
+	public long movedCount() {
+		return this.moved;
+	}
+
+	public long staleCount() {
+		return this.stale;
+	}
+
+	public long compactionCount() {
+		return this.compactions;
+	}
+
+	// An id found under an account with degree followers - queued if new, moved up if its score rose
+	public void discover(int twitterId, int degree) {
+		ByteBuffer page = this.page(twitterId);
+		int index = twitterId & (PAGE_IDS - 1);
+		int meta = page.get(index) & 0xff;
+		int discoveries = Math.min(15, (meta >>> 4) + 1);
+		int current = meta & (BUCKETS - 1);
+		int bucket = Math.max(0, Math.min(BUCKETS - 1, this.score.bucket(discoveries, degree)));
+		if (meta == 0 || bucket > current) {
+			this.buckets[bucket].enqueue(twitterId);
+			if (meta != 0) {
+				this.moved++;
+				this.staleEntries[current]++;
+				long entries = this.buckets[current].size();
+				if (this.compacting < 0 && this.staleEntries[current] > Math.max(entries - this.staleEntries[current], COMPACT_MIN)) {
+					this.compacting = current;
+					this.compactRemaining = entries;
+				}
+			} else {
+				this.live++;
+			}
+		} else {
+			bucket = current;
+		}
+		page.put(index, (byte)((discoveries << 4) | bucket));
+		if (this.compacting >= 0) {
+			this.compactStep();
+		}
+	}
+
+	// Pass the next COMPACT_STEP entries of the bucket being compacted from its head to its tail, dropping the stale
+	// ones - entries queued since it started are already behind them
+	private void compactStep() {
+		IntFileQueue queue = this.buckets[this.compacting];
+		int[] ids = queue.dequeue((int)Math.min(this.compactRemaining, COMPACT_STEP));
+		for (int twitterId : ids) {
+			if (this.bucketOf(twitterId) > this.compacting) {
+				this.stale++;
+				this.staleEntries[this.compacting] = Math.max(0, this.staleEntries[this.compacting] - 1);
+			} else {
+				queue.enqueue(twitterId);
+			}
+		}
+		this.passedOver(this.compacting, ids.length);
+	}
+
+	// Entries taken from the head of a bucket, by a compaction step or dequeue - the compaction ends once every entry
+	// it started with is passed over
+	private void passedOver(int bucket, int count) {
+		if (bucket == this.compacting) {
+			this.compactRemaining = Math.max(0, this.compactRemaining - count);
+			if (this.compactRemaining == 0) {
+				this.compacting = -1;
+				this.compactions++;
+			}
+		}
+	}
+
+	public void discover(int[] twitterIds, int degree) {
+		for (int twitterId : twitterIds) {
+			this.discover(twitterId, degree);
+		}
+	}
+
+	// Put ids back at the bucket they had - ids taken back from workers, or returned from pending on resume
+	public void requeue(int twitterId) {
+		ByteBuffer page = this.page(twitterId);
+		int index = twitterId & (PAGE_IDS - 1);
+		if (page.get(index) == 0) {
+			page.put(index, (byte)(1 << 4));
+		}
+		this.buckets[page.get(index) & (BUCKETS - 1)].enqueue(twitterId);
+		this.live++;
+	}
+
+	public void requeue(int[] twitterIds) {
+		for (int twitterId : twitterIds) {
+			this.requeue(twitterId);
+		}
+	}
+
+	public void requeue(LinkedList<Integer> twitterIds) {
+		for (int twitterId : twitterIds) {
+			this.requeue(twitterId);
+		}
+	}
+
+	// Up to max ids, highest bucket first, skipping entries left behind by ids that moved up
+	public int[] dequeue(int max) {
+		int[] retval = new int[(int)Math.min(max, this.entryCount())];
+		int offset = 0;
+		for (int bucket = BUCKETS - 1; bucket >= 0 && offset < retval.length; bucket--) {
+			while (offset < retval.length && !this.buckets[bucket].isEmpty()) {
+				int[] ids = this.buckets[bucket].dequeue(retval.length - offset);
+				for (int twitterId : ids) {
+					if (this.bucketOf(twitterId) > bucket) {
+						this.stale++;
+						this.staleEntries[bucket] = Math.max(0, this.staleEntries[bucket] - 1);
+					} else {
+						retval[offset++] = twitterId;
+						this.live--;
+					}
+				}
+				this.passedOver(bucket, ids.length);
+			}
+		}
+		return (offset == retval.length) ? retval : Arrays.copyOf(retval, offset);
+	}
+
+	private int bucketOf(int twitterId) {
+		return this.page(twitterId).get(twitterId & (PAGE_IDS - 1)) & (BUCKETS - 1);
+	}
+
+	// Write the head and tail positions of every bucket
+	public void writePosition(DataOutputStream out) throws IOException {
+		for (IntFileQueue bucket : this.buckets) {
+			bucket.writePosition(out);
+		}
+	}
+
+	// Reattach every bucket, after load() - ids queued or moved up since the checkpoint have entries the bytes do
+	// not know of, so each id's byte is raised to the highest bucket it has an entry in, and the entries in that
+	// bucket are the live ones
+	public void readPosition(DataInputStream in) throws IOException {
+		for (IntFileQueue bucket : this.buckets) {
+			bucket.readPosition(in);
+		}
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			final int entryBucket = bucket;
+			this.buckets[bucket].forEach(twitterId -> this.raise(twitterId, entryBucket));
+		}
+		this.live = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			final int entryBucket = bucket;
+			final long[] bucketLive = new long[1];
+			this.buckets[bucket].forEach(twitterId -> {
+				if (this.bucketOf(twitterId) == entryBucket) {
+					bucketLive[0]++;
+				}
+			});
+			this.live += bucketLive[0];
+			this.staleEntries[bucket] = this.buckets[bucket].size() - bucketLive[0];
+		}
+		this.compacting = -1;
+		this.compactRemaining = 0;
+	}
+
+	// Make an id's byte say it is at least in bucket, as an id first seen there
+	private void raise(int twitterId, int bucket) {
+		ByteBuffer page = this.page(twitterId);
+		int index = twitterId & (PAGE_IDS - 1);
+		int meta = page.get(index) & 0xff;
+		if (meta == 0) {
+			page.put(index, (byte)((1 << 4) | bucket));
+		} else if ((meta & (BUCKETS - 1)) < bucket) {
+			page.put(index, (byte)((meta & ~(BUCKETS - 1)) | bucket));
+		}
+	}
+
+	public void force() {
+		for (IntFileQueue bucket : this.buckets) {
+			bucket.force();
+		}
+	}
+
+	public void releaseConsumed() {
+		for (IntFileQueue bucket : this.buckets) {
+			bucket.releaseConsumed();
+		}
+	}
+
+	public void close() {
+		for (IntFileQueue bucket : this.buckets) {
+			bucket.close();
+		}
+		try {
+			this.pages = new ByteBuffer[PAGE_COUNT];
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Write every allocated page of discovery counts and buckets - changes after a checkpoint are not journaled,
+	// so a resumed frontier may have a few discovery counts low, which only costs their priority
+	public void save(DataOutputStream out) throws IOException {
+		int pageCount = 0;
+		for (ByteBuffer page : this.pages) {
+			if (page != null) {
+				pageCount++;
+			}
+		}
+		out.writeInt(pageCount);
+		byte[] bytes = new byte[PAGE_IDS];
+		for (int pageIndex = 0; pageIndex < PAGE_COUNT; pageIndex++) {
+			if (this.pages[pageIndex] != null) {
+				this.pages[pageIndex].duplicate().get(bytes);
+				out.writeInt(pageIndex);
+				out.write(bytes);
+			}
+		}
+	}
+
+	public void load(DataInputStream in) throws IOException {
+		int saved = in.readInt();
+		byte[] bytes = new byte[PAGE_IDS];
+		for (int i = 0; i < saved; i++) {
+			int pageIndex = in.readInt();
+			in.readFully(bytes);
+			this.page(pageIndex << PAGE_SHIFT).duplicate().put(bytes);
+		}
+	}
+
+	// Approximate footprint of the mapped pages in bytes
+	public long memoryUsage() {
+		long pageCount = 0;
+		for (ByteBuffer page : this.pages) {
+			if (page != null) {
+				pageCount++;
+			}
+		}
+		return pageCount * PAGE_IDS;
+	}
+
+	private ByteBuffer page(int twitterId) {
+		int pageIndex = twitterId >>> PAGE_SHIFT;
+		if (this.pages[pageIndex] == null) {
+			try {
+				this.pages[pageIndex] = this.channel.map(FileChannel.MapMode.READ_WRITE, (long)pageIndex * PAGE_IDS, PAGE_IDS);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		return this.pages[pageIndex];
+	}
+
+	// Testing program - tens of millions of discoveries with a skewed id distribution, then a drain
+	// With resume, a check that a frontier resumed from a checkpoint and a later commit drains each id once
+	// Usage: PriorityFrontier [discoveries] [score] | PriorityFrontier resume
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("resume")) {
+			System.exit(resumeCheck() ? 0 : 1);
+		}
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 30000000;
+		Score score = score((args.length > 1) ? args[1] : "discoveries");
+		String baseName = System.getProperty("java.io.tmpdir") + File.separator + "frontier_bench_" + System.currentTimeMillis();
+		Random random = new Random(42);
+		PriorityFrontier frontier = new PriorityFrontier(baseName, score);
+
+		// A few popular ids come up again and again, most only once
+		long begin = System.currentTimeMillis();
+		for (int i = 0; i < n; i++) {
+			int twitterId = (random.nextInt(4) == 0) ? random.nextInt(100000) : random.nextInt(300000000);
+			frontier.discover(twitterId, 1 + random.nextInt(5000));
+		}
+		long elapsed = System.currentTimeMillis() - begin;
+		System.out.println(n + " discoveries in " + elapsed + " ms, " + frontier.size() + " ids in " + frontier.entryCount() + " entries ("
+			+ (4 * frontier.entryCount() >> 20) + " MB), " + frontier.movedCount() + " moved up, " + frontier.compactionCount() + " bucket compactions, " + (frontier.memoryUsage() >> 20) + " MB of mapped meta");
+
+		begin = System.currentTimeMillis();
+		CrawlState state = new CrawlState();
+		long drained = 0;
+		long popularEarly = 0;
+		while (!frontier.isEmpty()) {
+			for (int twitterId : frontier.dequeue(2000)) {
+				if (!state.seen(twitterId)) {
+					state.set(twitterId, CrawlState.CRAWLED);
+					if (twitterId < 100000 && drained < 100000) {
+						popularEarly++;
+					}
+					drained++;
+				}
+			}
+		}
+		System.out.println("Drained " + drained + " unique ids in " + (System.currentTimeMillis() - begin) + " ms, "
+			+ popularEarly + " of the first 100000 popular, " + frontier.staleCount() + " stale entries skipped");
+		frontier.close();
+	}
+
+	// Checkpoint, queue and move up more ids, commit, resume from both and rediscover the moved ids again - every
+	// id must come out once, and size() must reach 0 with the buckets
+	private static boolean resumeCheck() {
+		String baseName = System.getProperty("java.io.tmpdir") + File.separator + "frontier_resume_" + System.currentTimeMillis();
+		PriorityFrontier frontier = new PriorityFrontier(baseName, DISCOVERIES);
+		try {
+			for (int twitterId = 1; twitterId <= 1000; twitterId++) {
+				frontier.discover(twitterId, 1);
+			}
+			frontier.dequeue(100);
+			ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+			frontier.save(new DataOutputStream(checkpoint));
+
+			// After the checkpoint - new ids, and old ones moved up
+			for (int twitterId = 500; twitterId <= 1500; twitterId++) {
+				frontier.discover(twitterId, 1);
+			}
+			ByteArrayOutputStream commit = new ByteArrayOutputStream();
+			frontier.writePosition(new DataOutputStream(commit));
+			frontier.force();
+			long expected = frontier.size();
+
+			PriorityFrontier resumed = new PriorityFrontier(baseName, DISCOVERIES);
+			resumed.load(new DataInputStream(new ByteArrayInputStream(checkpoint.toByteArray())));
+			resumed.readPosition(new DataInputStream(new ByteArrayInputStream(commit.toByteArray())));
+			boolean ok = (resumed.size() == expected);
+			System.out.println("Resumed with " + resumed.size() + " live ids of " + expected + " in " + resumed.entryCount() + " entries");
+
+			// Rediscovered after the resume - moves the ids up again
+			for (int twitterId = 500; twitterId <= 1500; twitterId++) {
+				resumed.discover(twitterId, 1);
+			}
+			HashSet<Integer> drained = new HashSet<Integer>();
+			int duplicates = 0;
+			while (!resumed.isEmpty()) {
+				for (int twitterId : resumed.dequeue(64)) {
+					if (!drained.add(twitterId)) {
+						duplicates++;
+					}
+				}
+			}
+			System.out.println("Drained " + drained.size() + " of " + expected + " ids, " + duplicates + " twice, size() is " + resumed.size());
+			if (duplicates > 0 || drained.size() != expected || resumed.size() != 0) {
+				ok = false;
+			}
+			resumed.close();
+			System.out.println(ok ? "OK" : "FAILED");
+			return ok;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
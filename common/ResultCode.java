@@ -6,17 +6,30 @@ public enum ResultCode {
 	INVALID_ACCOUNT,
 	NOT_FOUND,
 	NOT_AUTHORIZED,
-	FAILED;
+	FAILED,
+	PARTIAL;	// A chunk of followers, with more to come - the final chunk carries SUCCESS, or the failure ends them
 	
 	public int toInt() {
 		int retval = 0;
 		switch (this) {
-			case SUCCESS: retval = 0;
-			case INVALID_ACCOUNT: retval = 1;
-			case NOT_FOUND: retval = 2;
-			case NOT_AUTHORIZED: retval = 3;
-			case FAILED: retval = 4;
+			case SUCCESS: retval = 0; break;
+			case INVALID_ACCOUNT: retval = 1; break;
+			case NOT_FOUND: retval = 2; break;
+			case NOT_AUTHORIZED: retval = 3; break;
+			case FAILED: retval = 4; break;
+			case PARTIAL: retval = 5; break;
 		}
 		return retval;
 	}
+	
+	public static ResultCode fromInt(int code) {
+		switch (code) {
+			case 0: return SUCCESS;
+			case 1: return INVALID_ACCOUNT;
+			case 2: return NOT_FOUND;
+			case 3: return NOT_AUTHORIZED;
+			case 5: return PARTIAL;
+			default: return FAILED;
+		}
+	}
 }
\ No newline at end of file
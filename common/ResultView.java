@@ -0,0 +1,144 @@
+package common;
+
+import java.nio.*;
+import java.util.*;
+
+// Flyweight over one logged record, in whatever format its segment was written
+// A scan moves the same view from record to record over its decoded block, so nothing is allocated per record -
+// a consumer that keeps a result past its callback has to take toResult()
+// Followers are only decoded once asked for, so jobs that filter on the id or code do not pay for them
+public class ResultView {
+	private ByteBuffer bytes;
+	private boolean fixedWidth;		// Older segments - ints rather than varint gaps, see LegacyFormat
+	private boolean legacyFollowers;	// Fixed width records from a success log, which always carry followers
+	private int end;
+	private int next;
+	private int varintEnd;		// Just past the last varint read
+
+	private int twitterId;
+	private ResultCode code;
+	private int count;
+	private int followersAt;
+	private int[] followers = new int[256];
+	private boolean decoded;
+
+	public int getTwitterId() { return this.twitterId; }
+	public ResultCode getResult() { return this.code; }
+	public boolean isSuccessful() { return this.code == ResultCode.SUCCESS; }
+	public boolean isPartial() { return this.code == ResultCode.PARTIAL; }
+	public int getFollowerCount() { return this.count; }
+
+	public int getFollower(int i) {
+		if (i < 0 || i >= this.count) {
+			throw new IndexOutOfBoundsException("Follower " + i + " of " + this.count);
+		}
+		this.decode();
+		return this.followers[i];
+	}
+
+	// Followers into the start of the array, which must hold getFollowerCount() of them
+	public void getFollowers(int[] into) {
+		this.decode();
+		System.arraycopy(this.followers, 0, into, 0, this.count);
+	}
+
+	// A copy that outlives the view
+	public CrawlResult toResult() {
+		if (this.code != ResultCode.SUCCESS && this.code != ResultCode.PARTIAL) {
+			return new CrawlResult(this.twitterId, this.code);
+		}
+		this.decode();
+		return new CrawlResult(this.twitterId, this.code, Arrays.copyOf(this.followers, this.count));
+	}
+
+	// Point the view at the block format records in bytes [position, end)
+	void reset(ByteBuffer bytes, int position, int end) {
+		this.bytes = bytes;
+		this.next = position;
+		this.end = end;
+		this.fixedWidth = false;
+	}
+
+	// Point the view at whole fixed width records in bytes [position, end), from a success log if followers
+	void resetFixedWidth(ByteBuffer bytes, int position, int end, boolean followers) {
+		this.reset(bytes, position, end);
+		this.fixedWidth = true;
+		this.legacyFollowers = followers;
+	}
+
+	boolean hasNext() {
+		return this.next < this.end;
+	}
+
+	// Move to the next record, returning false at the end of the records
+	boolean advance() {
+		if (this.next >= this.end) {
+			return false;
+		}
+		int position = this.next;
+		this.count = 0;
+		this.decoded = true;
+		if (this.fixedWidth) {
+			// Whether there are followers goes by the log, not the code
+			this.twitterId = this.bytes.getInt(position);
+			this.code = LegacyFormat.code(this.bytes.getInt(position + 4), this.legacyFollowers);
+			if (this.legacyFollowers) {
+				this.count = this.bytes.getInt(position + 8);
+				this.followersAt = position + 12;
+				this.decoded = false;
+			}
+			this.next = LegacyFormat.recordEnd(this.bytes, position, this.end, this.legacyFollowers);
+			return true;
+		}
+		this.twitterId = this.varint(position);
+		position = this.varintEnd;
+		this.code = ResultCode.fromInt(this.bytes.get(position++));
+		if (this.code == ResultCode.SUCCESS || this.code == ResultCode.PARTIAL) {
+			this.count = this.varint(position);
+			this.followersAt = this.varintEnd;
+			position = this.followersAt;
+			for (int i = 0; i < this.count; i++) {
+				while (this.bytes.get(position++) < 0) {}
+			}
+			this.decoded = false;
+		}
+		this.next = position;
+		return true;
+	}
+
+	private void decode() {
+		if (this.decoded) {
+			return;
+		}
+		if (this.followers.length < this.count) {
+			this.followers = new int[Math.max(this.count, this.followers.length * 2)];
+		}
+		int position = this.followersAt;
+		if (this.fixedWidth) {
+			for (int i = 0; i < this.count; i++) {
+				this.followers[i] = this.bytes.getInt(position);
+				position += 4;
+			}
+		} else {
+			int previous = 0;
+			for (int i = 0; i < this.count; i++) {
+				previous += this.varint(position);
+				position = this.varintEnd;
+				this.followers[i] = previous;
+			}
+		}
+		this.decoded = true;
+	}
+
+	private int varint(int position) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = this.bytes.get(position++);
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				this.varintEnd = position;
+				return value;
+			}
+		}
+	}
+}
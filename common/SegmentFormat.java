@@ -0,0 +1,220 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Versioned, indexed segment format (.seg)
+//	header: int MAGIC, byte VERSION
+//	blocks: int stored length, int raw length, int crc of the stored bytes, byte codec, stored bytes
+//		the raw bytes are records - varint twitterId, byte result code, and for SUCCESS and PARTIAL
+//		a varint count, then the sorted followers as a varint first id and varint gaps
+//	index: (int twitterId, long block offset, int record offset within the raw block) sorted by id, then position
+//		- one entry per record, so a lookup decodes only the record it wants
+//	trailer: long index offset, int entry count, int crc of the index, int INDEX_MAGIC
+// A segment without a trailer was not closed - its blocks are good up to the first torn one, and seal() adds the index
+public class SegmentFormat {
+	public static final String EXTENSION = ".seg";
+	public static final int MAGIC = 0x54575347;		// TWSG
+	public static final int INDEX_MAGIC = 0x54575358;	// TWSX
+	public static final byte VERSION = 2;
+	public static final int HEADER_BYTES = 5;
+	public static final int BLOCK_HEADER_BYTES = 13;
+	public static final int INDEX_ENTRY_BYTES = 16;
+	public static final int TRAILER_BYTES = 20;
+	public static final byte RAW = 0;
+	public static final byte DEFLATE = 1;
+	private static final int MAX_BLOCK = 1 << 28;
+
+	// Most bytes a record can take
+	static int maxRecordBytes(CrawlResult result) {
+		return 5 + 1 + 5 + 5 * result.getFollowers().length;
+	}
+
+	// Encode a record at position, sorting its followers in place - returns the position after it
+	static int encode(CrawlResult result, byte[] buffer, int position) {
+		position = writeVarint(buffer, position, result.getTwitterId());
+		buffer[position++] = (byte)result.getResult().toInt();
+		if (result.isSuccessful() || result.isPartial()) {
+			int[] followers = result.getFollowers();
+			Arrays.sort(followers);
+			position = writeVarint(buffer, position, followers.length);
+			int previous = 0;
+			for (int followerId : followers) {
+				position = writeVarint(buffer, position, followerId - previous);
+				previous = followerId;
+			}
+		}
+		return position;
+	}
+
+	// Unsigned 32 bit varint
+	private static int writeVarint(byte[] buffer, int position, int value) {
+		while ((value & ~0x7f) != 0) {
+			buffer[position++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte)value;
+		return position;
+	}
+
+	static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).put(VERSION).flip();
+		writeFully(channel, header, 0);
+	}
+
+	public static boolean validHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		return (readFully(channel, header, 0) && header.getInt(0) == MAGIC && header.get(4) == VERSION);
+	}
+
+	// Read the block at offset, not reading past end - null if it is torn or fails its checksum
+	static Block readBlock(FileChannel channel, long offset, long end, Inflater inflater) throws IOException {
+		if (offset + BLOCK_HEADER_BYTES > end) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+		if (!readFully(channel, header, offset)) {
+			return null;
+		}
+		int stored = header.getInt(0);
+		int raw = header.getInt(4);
+		int crc = header.getInt(8);
+		byte codec = header.get(12);
+		if (stored < 0 || raw < 0 || stored > MAX_BLOCK || raw > MAX_BLOCK || offset + BLOCK_HEADER_BYTES + stored > end) {
+			return null;
+		}
+		byte[] bytes = new byte[stored];
+		if (!readFully(channel, ByteBuffer.wrap(bytes), offset + BLOCK_HEADER_BYTES)) {
+			return null;
+		}
+		CRC32 check = new CRC32();
+		check.update(bytes, 0, stored);
+		if ((int)check.getValue() != crc) {
+			return null;
+		}
+		if (codec == DEFLATE) {
+			byte[] inflated = new byte[raw];
+			try {
+				inflater.reset();
+				inflater.setInput(bytes, 0, stored);
+				if (inflater.inflate(inflated) != raw) {
+					return null;
+				}
+			} catch (DataFormatException e) {
+				return null;
+			}
+			bytes = inflated;
+		} else if (codec != RAW || raw != stored) {
+			return null;
+		}
+		return new Block(offset, offset + BLOCK_HEADER_BYTES + stored, bytes);
+	}
+
+	// Index offset and entry count from the trailer, or null if the segment was never closed
+	public static long[] readTrailer(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < HEADER_BYTES + TRAILER_BYTES) {
+			return null;
+		}
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+		if (!readFully(channel, trailer, size - TRAILER_BYTES) || trailer.getInt(16) != INDEX_MAGIC) {
+			return null;
+		}
+		long indexOffset = trailer.getLong(0);
+		int count = trailer.getInt(8);
+		if (count < 0 || indexOffset < HEADER_BYTES || indexOffset + (long)count * INDEX_ENTRY_BYTES + TRAILER_BYTES != size) {
+			return null;
+		}
+		return new long[] { indexOffset, count };
+	}
+
+	// Give a segment that was never closed its index, dropping any torn block at the end
+	public static void seal(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (readTrailer(channel) != null) {
+				return;
+			}
+			if (!validHeader(channel)) {
+				channel.truncate(0);
+				writeHeader(channel);
+			}
+			SegmentIndex index = SegmentIndex.scan(channel);
+			channel.truncate(index.dataEnd());
+			index.write(channel, index.dataEnd());
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	// Testing program - re-encode existing log segments and report the size and encode cost
+	// Usage: SegmentFormat segment... (any format SegmentReader reads)
+	public static void main(String[] args) throws IOException {
+		String temp = System.getProperty("java.io.tmpdir") + File.separator + "segment_bench_" + System.currentTimeMillis();
+		ArrayList<CrawlResult> results = new ArrayList<CrawlResult>();
+		long oldBytes = 0;
+		long plainBytes = 0;
+		long followerCount = 0;
+		for (String fileName : args) {
+			oldBytes += (new File(fileName)).length();
+			SegmentReader reader = SegmentReader.open(fileName);
+			CrawlResult result;
+			while ((result = reader.next()) != null) {
+				results.add(result);
+				int followers = result.getFollowers().length;
+				plainBytes += 8 + ((result.isSuccessful() || result.isPartial()) ? 4 + 4 * followers : 0);
+				followerCount += followers;
+			}
+			reader.close();
+		}
+		System.out.println(results.size() + " results, " + followerCount + " followers");
+		System.out.println("old segments: " + oldBytes + " bytes, " + plainBytes + " bytes uncompressed");
+
+		for (String codec : new String[] { "none", "deflate" }) {
+			System.setProperty("log.codec", codec);
+			for (int pass = 0; pass < 3; pass++) {
+				String baseName = temp + "_" + codec + "_" + pass;
+				long begin = System.nanoTime();
+				SegmentedLogger logger = new SegmentedLogger(baseName);
+				for (CrawlResult result : results) {
+					logger.addResult(result);
+				}
+				logger.close();
+				long elapsed = System.nanoTime() - begin;
+
+				long bytes = 0;
+				for (int segment = 0; segment <= logger.segmentCount(); segment++) {
+					File file = new File(baseName + "_" + segment + EXTENSION);
+					bytes += file.length();
+					file.delete();
+				}
+				if (pass == 2) {
+					System.out.println(EXTENSION + " " + codec + ": " + bytes + " bytes (" + (100 * bytes / Math.max(1, plainBytes)) + "% of uncompressed), "
+						+ (elapsed / Math.max(1, results.size())) + " ns per result");
+				}
+			}
+		}
+	}
+}
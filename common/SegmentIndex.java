@@ -0,0 +1,110 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+// twitterId to block offset and record offset entries of a segment, one per record - built by the writer,
+// or by scanning a segment that was never closed, and written as the segment's footer
+public class SegmentIndex {
+	private int[] ids = new int[1024];
+	private long[] offsets = new long[1024];
+	private int[] records = new int[1024];
+	private int count = 0;
+	private long dataEnd = SegmentFormat.HEADER_BYTES;	// End of the last good block, when scanned
+
+	public void add(int twitterId, long blockOffset, int recordOffset) {
+		if (this.count == this.ids.length) {
+			this.ids = Arrays.copyOf(this.ids, this.count * 2);
+			this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+			this.records = Arrays.copyOf(this.records, this.count * 2);
+		}
+		this.ids[this.count] = twitterId;
+		this.offsets[this.count] = blockOffset;
+		this.records[this.count++] = recordOffset;
+	}
+
+	public int size() { return this.count; }
+	public int idAt(int i) { return this.ids[i]; }
+	public long offsetAt(int i) { return this.offsets[i]; }
+	public int recordAt(int i) { return this.records[i]; }
+	public long dataEnd() { return this.dataEnd; }
+
+	public void clear() {
+		this.count = 0;
+	}
+
+	// Sort by id, keeping entries in the order added - ids are never negative, so they pack above the entry number
+	public void sort() {
+		long[] order = new long[this.count];
+		for (int i = 0; i < this.count; i++) {
+			order[i] = ((long)this.ids[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		int[] sortedIds = new int[Math.max(1, this.count)];
+		long[] sortedOffsets = new long[Math.max(1, this.count)];
+		int[] sortedRecords = new int[Math.max(1, this.count)];
+		for (int i = 0; i < this.count; i++) {
+			int entry = (int)order[i];
+			sortedIds[i] = this.ids[entry];
+			sortedOffsets[i] = this.offsets[entry];
+			sortedRecords[i] = this.records[entry];
+		}
+		this.ids = sortedIds;
+		this.offsets = sortedOffsets;
+		this.records = sortedRecords;
+	}
+
+	// First entry for the id once sorted, or -1
+	public int find(int twitterId) {
+		int low = 0;
+		int high = this.count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.ids[middle] < twitterId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return (low < this.count && this.ids[low] == twitterId) ? low : -1;
+	}
+
+	// Sort, then write the entries and the trailer at position
+	void write(FileChannel channel, long position) throws IOException {
+		this.sort();
+		ByteBuffer index = ByteBuffer.allocate(this.count * SegmentFormat.INDEX_ENTRY_BYTES + SegmentFormat.TRAILER_BYTES);
+		for (int i = 0; i < this.count; i++) {
+			index.putInt(this.ids[i]).putLong(this.offsets[i]).putInt(this.records[i]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(index.array(), 0, this.count * SegmentFormat.INDEX_ENTRY_BYTES);
+		index.putLong(position).putInt(this.count).putInt((int)crc.getValue()).putInt(SegmentFormat.INDEX_MAGIC).flip();
+		SegmentFormat.writeFully(channel, index, position);
+	}
+
+	// Index the good blocks of a segment that has no footer - dataEnd is where they stop
+	public static SegmentIndex scan(FileChannel channel) throws IOException {
+		SegmentIndex index = new SegmentIndex();
+		long end = channel.size();
+		long offset = SegmentFormat.HEADER_BYTES;
+		Inflater inflater = new Inflater(true);
+		try {
+			Block block;
+			while ((block = SegmentFormat.readBlock(channel, offset, end, inflater)) != null) {
+				while (block.hasNext()) {
+					int record = block.position();
+					index.add(block.skip(), block.offset, record);
+				}
+				offset = block.end;
+			}
+		} finally {
+			inflater.end();
+		}
+		index.dataEnd = offset;
+		index.sort();
+		return index;
+	}
+}
@@ -0,0 +1,100 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Reads the results in a log segment, whatever format it was written in
+//	.seg - the indexed block format in SegmentFormat, read up to the index, or up to the first torn block if never closed
+//	.txt.gz and .txt - the older fixed width format in LegacyFormat - read up to the first torn record
+// A large account may have several PARTIAL records before its SUCCESS record, possibly repeated by a recrawl - or
+// before a failure record, also in the success log, which means none of them count
+public class SegmentReader {
+	// Blocks of a .seg segment
+	private FileChannel channel;
+	private Inflater inflater;
+	private long dataEnd;
+	private long nextBlock = SegmentFormat.HEADER_BYTES;
+	private Block block;
+
+	// Older segments, mapped - whether their records carry followers, and the next record
+	private ByteBuffer map;
+	private boolean followers;
+	private int position = 0;
+	private int end;
+
+	private SegmentReader() {}
+
+	public static SegmentReader open(String fileName) throws IOException {
+		SegmentReader reader = new SegmentReader();
+		if (fileName.endsWith(SegmentFormat.EXTENSION)) {
+			reader.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			if (!SegmentFormat.validHeader(reader.channel)) {
+				reader.channel.close();
+				throw new IOException("Not a segment: " + fileName);
+			}
+			long[] trailer = SegmentFormat.readTrailer(reader.channel);
+			reader.dataEnd = (trailer != null) ? trailer[0] : reader.channel.size();
+			reader.inflater = new Inflater(true);
+		} else {
+			reader.map = LegacyFormat.map(fileName);
+			reader.followers = !LegacyFormat.isFailureLog(fileName);
+			reader.end = LegacyFormat.dataEnd(reader.map, reader.followers, fileName.endsWith(".gz"));
+		}
+		return reader;
+	}
+
+	// The files of a log, in segment order - an uncompressed segment is preferred to its .gz, which may be half written
+	public static ArrayList<String> segments(String baseName) {
+		ArrayList<String> files = new ArrayList<String>();
+		for (int segment = 0; ; segment++) {
+			String name = baseName + "_" + segment;
+			if ((new File(name + SegmentFormat.EXTENSION)).exists()) {
+				files.add(name + SegmentFormat.EXTENSION);
+			} else if ((new File(name + ".txt")).exists()) {
+				files.add(name + ".txt");
+			} else if ((new File(name + ".txt.gz")).exists()) {
+				files.add(name + ".txt.gz");
+			} else {
+				return files;
+			}
+		}
+	}
+
+	// The next result, or null at the end
+	public CrawlResult next() throws IOException {
+		return (this.channel != null) ? this.nextBlocked() : this.nextOld();
+	}
+
+	private CrawlResult nextBlocked() throws IOException {
+		while (this.block == null || !this.block.hasNext()) {
+			this.block = SegmentFormat.readBlock(this.channel, this.nextBlock, this.dataEnd, this.inflater);
+			if (this.block == null) {
+				return null;
+			}
+			this.nextBlock = this.block.end;
+		}
+		return this.block.next();
+	}
+
+	private CrawlResult nextOld() {
+		if (this.position >= this.end) {
+			return null;
+		}
+		CrawlResult result = LegacyFormat.record(this.map, this.position, this.followers);
+		this.position = LegacyFormat.recordEnd(this.map, this.position, this.end, this.followers);
+		return result;
+	}
+
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.inflater.end();
+			this.channel.close();
+		} else {
+			this.map = null;
+		}
+	}
+}
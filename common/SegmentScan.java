@@ -0,0 +1,312 @@
+package common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+// Full passes over logged results, as a parallel Stream of ResultView
+// The stream splits first by segment, then by block within a segment, so the fork-join pool running it
+// checksums, inflates and parses blocks on every core - run the terminal operation inside pool.submit() to use
+// a pool other than the common one
+// Each split reuses one view and one inflate buffer, so a view is only valid until the consumer returns
+// Torn tails are skipped the way SegmentReader skips them; failures to read a segment are UncheckedIOException
+public class SegmentScan {
+	private SegmentScan() {}
+
+	// Results from every segment of the logs, like log/crawl_s and log/crawl_f, in log and segment order
+	public static Stream<ResultView> stream(String... baseNames) {
+		ArrayList<String> files = new ArrayList<String>();
+		for (String baseName : baseNames) {
+			files.addAll(SegmentReader.segments(baseName));
+		}
+		return stream(files);
+	}
+
+	// Results from the given segment files, in any format SegmentReader reads
+	public static Stream<ResultView> stream(List<String> files) {
+		return StreamSupport.stream(new SegmentSpliterator(files, 0, files.size(), null, 0, 0), true);
+	}
+
+	// Testing program - a full pass with SegmentReader, then with the stream on 1 to all cores
+	// Usage: SegmentScan baseName...
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: baseName...");
+			return;
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			long begin = System.nanoTime();
+			long results = 0;
+			long followers = 0;
+			for (String baseName : args) {
+				for (String fileName : SegmentReader.segments(baseName)) {
+					SegmentReader reader = SegmentReader.open(fileName);
+					CrawlResult result;
+					while ((result = reader.next()) != null) {
+						results++;
+						for (int followerId : result.getFollowers()) {
+							followers += followerId;
+						}
+					}
+					reader.close();
+				}
+			}
+			System.out.println("SegmentReader: " + results + " results, follower sum " + followers + " in " + (System.nanoTime() - begin) / 1000000 + " ms");
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; ; threads = Math.min(cores, threads * 2)) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			for (int pass = 0; pass < 2; pass++) {
+				long begin = System.nanoTime();
+				long[] totals = pool.submit(() -> stream(args).map(view -> {
+					long sum = 0;
+					for (int i = 0; i < view.getFollowerCount(); i++) {
+						sum += view.getFollower(i);
+					}
+					return new long[] { 1, sum };
+				}).reduce(new long[] { 0, 0 }, (a, b) -> new long[] { a[0] + b[0], a[1] + b[1] })).get();
+				if (pass == 1) {
+					System.out.println("SegmentScan on " + threads + " threads: " + totals[0] + " results, follower sum " + totals[1]
+						+ " in " + (System.nanoTime() - begin) / 1000000 + " ms");
+				}
+			}
+			pool.shutdown();
+			if (threads == cores) {
+				break;
+			}
+		}
+	}
+}
+
+// Splits over files not yet opened, then over the units of the one segment it has open
+class SegmentSpliterator implements Spliterator<ResultView> {
+	private List<String> files;
+	private int fileFrom;
+	private int fileTo;
+	private ScanSegment segment;
+	private int unitFrom;
+	private int unitTo;
+
+	private ResultView view = new ResultView();
+	private Inflater inflater;
+	private ByteBuffer inflated;
+
+	SegmentSpliterator(List<String> files, int fileFrom, int fileTo, ScanSegment segment, int unitFrom, int unitTo) {
+		this.files = files;
+		this.fileFrom = fileFrom;
+		this.fileTo = fileTo;
+		this.segment = segment;
+		this.unitFrom = unitFrom;
+		this.unitTo = unitTo;
+	}
+
+	public boolean tryAdvance(Consumer<? super ResultView> action) {
+		try {
+			while (!this.view.advance()) {
+				if (this.unitFrom < this.unitTo) {
+					this.load(this.unitFrom++);
+				} else if (this.fileFrom < this.fileTo) {
+					this.open(this.fileFrom++);
+				} else {
+					if (this.inflater != null) {
+						this.inflater.end();
+						this.inflater = null;
+					}
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		action.accept(this.view);
+		return true;
+	}
+
+	// The earlier half - never splits a unit that has been started
+	public Spliterator<ResultView> trySplit() {
+		if (this.view.hasNext()) {
+			return null;
+		}
+		try {
+			if (this.unitFrom >= this.unitTo && this.fileTo - this.fileFrom == 1) {
+				this.open(this.fileFrom++);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		SegmentSpliterator prefix;
+		if (this.unitFrom < this.unitTo && this.fileFrom < this.fileTo) {
+			// The open segment, and the files before the middle of the rest
+			int middle = (this.fileFrom + this.fileTo) >>> 1;
+			prefix = new SegmentSpliterator(this.files, this.fileFrom, middle, this.segment, this.unitFrom, this.unitTo);
+			this.fileFrom = middle;
+			this.unitFrom = this.unitTo;
+		} else if (this.fileTo - this.fileFrom > 1) {
+			int middle = (this.fileFrom + this.fileTo) >>> 1;
+			prefix = new SegmentSpliterator(this.files, this.fileFrom, middle, null, 0, 0);
+			this.fileFrom = middle;
+		} else if (this.unitTo - this.unitFrom > 1) {
+			int middle = (this.unitFrom + this.unitTo) >>> 1;
+			prefix = new SegmentSpliterator(this.files, this.fileTo, this.fileTo, this.segment, this.unitFrom, middle);
+			this.unitFrom = middle;
+		} else {
+			return null;
+		}
+		return prefix;
+	}
+
+	// Roughly one result per 32 bytes on disk - only used to decide how far to split
+	public long estimateSize() {
+		long bytes = (this.unitFrom < this.unitTo) ? this.segment.units[this.unitTo] - this.segment.units[this.unitFrom] : 0;
+		for (int file = this.fileFrom; file < this.fileTo; file++) {
+			bytes += (new File(this.files.get(file))).length();
+		}
+		return bytes / 32;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	private void open(int file) throws IOException {
+		this.segment = new ScanSegment(this.files.get(file));
+		this.unitFrom = 0;
+		this.unitTo = this.segment.unitCount;
+	}
+
+	// Point the view at a unit - a .seg block is checked and inflated first, and skipped if it is torn
+	private void load(int unit) throws IOException {
+		ByteBuffer map = this.segment.map;
+		int offset = this.segment.units[unit];
+		if (this.segment.fixedWidth) {
+			this.view.resetFixedWidth(map, offset, this.segment.units[unit + 1], this.segment.followers);
+			return;
+		}
+
+		int stored = map.getInt(offset);
+		int raw = map.getInt(offset + 4);
+		int crc = map.getInt(offset + 8);
+		byte codec = map.get(offset + 12);
+		int data = offset + SegmentFormat.BLOCK_HEADER_BYTES;
+		ByteBuffer input = map.duplicate();
+		input.limit(data + stored).position(data);
+		CRC32 check = new CRC32();
+		check.update(input);
+		if ((int)check.getValue() != crc) {
+			return;
+		}
+		if (codec == SegmentFormat.RAW && raw == stored) {
+			this.view.reset(map, data, data + raw);
+		} else if (codec == SegmentFormat.DEFLATE) {
+			if (this.inflater == null) {
+				this.inflater = new Inflater(true);
+			}
+			if (this.inflated == null || this.inflated.capacity() < raw) {
+				this.inflated = ByteBuffer.allocate(Math.max(raw, 1 << 16));
+			}
+			input.position(data);
+			this.inflated.clear();
+			this.inflater.reset();
+			this.inflater.setInput(input);
+			try {
+				if (this.inflater.inflate(this.inflated) != raw) {
+					return;
+				}
+			} catch (DataFormatException e) {
+				return;
+			}
+			this.view.reset(this.inflated, 0, raw);
+		}
+	}
+}
+
+// A segment mapped or inflated into memory, and cut into units a scan can take on their own -
+// the blocks of a .seg segment, or runs of about UNIT_BYTES of records in an older one
+// units[i] is where unit i starts, and units[unitCount] where the last one ends
+class ScanSegment {
+	private static final int UNIT_BYTES = 1 << 16;
+
+	ByteBuffer map;
+	boolean fixedWidth;
+	boolean followers;		// Fixed width records from a success log
+	int[] units = new int[64];
+	int unitCount = 0;
+
+	ScanSegment(String fileName) throws IOException {
+		if (fileName.endsWith(SegmentFormat.EXTENSION)) {
+			this.openBlocks(fileName);
+		} else {
+			this.openOld(fileName);
+		}
+	}
+
+	private void openBlocks(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		long dataEnd;
+		try {
+			if (!SegmentFormat.validHeader(channel)) {
+				throw new IOException("Not a segment: " + fileName);
+			}
+			long[] trailer = SegmentFormat.readTrailer(channel);
+			dataEnd = (trailer != null) ? trailer[0] : channel.size();
+			this.map = map(channel, dataEnd);
+		} finally {
+			channel.close();
+		}
+
+		// Walk the block headers - a torn block at the end of a segment never closed is left out
+		int offset = SegmentFormat.HEADER_BYTES;
+		while (offset + SegmentFormat.BLOCK_HEADER_BYTES <= dataEnd) {
+			int stored = this.map.getInt(offset);
+			if (stored < 0 || offset + SegmentFormat.BLOCK_HEADER_BYTES + (long)stored > dataEnd) {
+				break;
+			}
+			this.add(offset);
+			offset += SegmentFormat.BLOCK_HEADER_BYTES + stored;
+		}
+		this.finish(offset);
+	}
+
+	// Older fixed width segments, decoded as LegacyFormat says - a .txt.gz is inflated once into a temporary file
+	// and mapped in turn, and the stale tail it was gzipped with is left out
+	private void openOld(String fileName) throws IOException {
+		this.fixedWidth = true;
+		this.followers = !LegacyFormat.isFailureLog(fileName);
+		this.map = LegacyFormat.map(fileName);
+		int end = LegacyFormat.dataEnd(this.map, this.followers, fileName.endsWith(".gz"));
+		int unitStart = -UNIT_BYTES;
+		for (int position = 0; position < end; position = LegacyFormat.recordEnd(this.map, position, end, this.followers)) {
+			if (position - unitStart >= UNIT_BYTES) {
+				this.add(position);
+				unitStart = position;
+			}
+		}
+		this.finish(end);
+	}
+
+	private void add(int offset) {
+		if (this.unitCount + 1 >= this.units.length) {
+			this.units = Arrays.copyOf(this.units, this.units.length * 2);
+		}
+		this.units[this.unitCount++] = offset;
+	}
+
+	private void finish(int end) {
+		this.units[this.unitCount] = end;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Segment too large to map: " + size + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+}
@@ -1,112 +1,566 @@
 package common;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.zip.*;
 
 // Segmented logger writes log files, and handles flushing
+// Results are encoded into the active buffer on the caller's thread, and full buffers are handed to a writer thread,
+// which writes it as blocks of a SegmentFormat segment - the caller only waits when every buffer is queued
+// Blocks are compressed and checksummed on their own, and the writer builds the segment's index as it goes,
+// so nothing is written twice and any result can be found by decoding one small block
+// Compression and durability policy, from system properties:
+//	log.codec - deflate, or none for uncompressed blocks
+//	log.level - deflate level, 1 by default since speed matters more than the last few percent here
+//	log.batchBytes - buffer size, so a buffer is handed off once this many bytes are waiting
+//	log.blockBytes - records are cut into blocks of about this size, 4KB by default - a random lookup inflates
+//		up to half a block, so larger blocks compress a little better but make lookups slower
+//	log.flushMillis - the writer takes a partly filled buffer once it has waited this long
+//	log.fsyncBytes, log.fsyncMillis - force the segment after this many bytes or this long, 0 for never
+//	log.fsyncOnFlush - force the segment on every flush(), so a journal commit implies the results are on disk
 public class SegmentedLogger {
-	private LinkedList<CrawlResult> queue;
 	private String baseName;
-	private DataOutputStream output;
-	private String EXTENSION = ".txt";
+	private boolean COMPRESS = !"none".equals(System.getProperty("log.codec", "deflate"));
+	private int LEVEL = Integer.getInteger("log.level", Deflater.BEST_SPEED);
+	
+	// Segments a crash left without an index are sealed, and older uncompressed segments gzipped,
+	// in the background, one at a time
+	private static ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "log-seal");
+			thread.setDaemon(true);	// An unfinished task is simply redone on the next resume
+			return thread;
+		}
+	});
 		
 	// Counters and flushing parameters
 	private long loggedCount = 0;
 	private int segmentCount = 0;
-	private int FLUSH_THRESHOLD = 100;
+	private int segmentLogged = 0;
 	private int SEGMENT_THRESHOLD = 100000;
+	private int BUFFER_COUNT = 4;
+	private int BATCH_BYTES = Integer.getInteger("log.batchBytes", 1 << 20);
+	private int BLOCK_BYTES = Integer.getInteger("log.blockBytes", 1 << 12);
+	private long FLUSH_MILLIS = Long.getLong("log.flushMillis", 200);
+	private long FSYNC_BYTES = Long.getLong("log.fsyncBytes", 0);
+	private long FSYNC_MILLIS = Long.getLong("log.fsyncMillis", 0);
+	private boolean FSYNC_ON_FLUSH = Boolean.getBoolean("log.fsyncOnFlush");
+	
+	// Active buffer with the ids and end positions of its records, guarded by bufferLock,
+	// free buffers, and batches waiting for the writer
+	private ReentrantLock bufferLock = new ReentrantLock();
+	private ByteBuffer active;
+	private int[] activeIds = new int[1024];
+	private int[] activeEnds = new int[1024];
+	private int activeIdCount = 0;
+	private ArrayBlockingQueue<ByteBuffer> free;
+	private ArrayBlockingQueue<Batch> batches;
+	
+	// Writer thread state - only the writer touches these after construction
+	private Thread writer;
+	private FileChannel output;
+	private long outputPosition;
+	private int writerSegment;
+	private long unforcedBytes = 0;
+	private long lastForce = System.currentTimeMillis();
+	private Deflater deflater;
+	private byte[] compressed = new byte[0];
+	private CRC32 crc = new CRC32();
+	private ByteBuffer blockHeader = ByteBuffer.allocate(SegmentFormat.BLOCK_HEADER_BYTES);
+	
+	// Index of the writer's segment
+	private SegmentIndex index = new SegmentIndex();
+	
+	// Where the last flush left the writer - its segment and the end of the last block written
+	private volatile long flushedOffset = SegmentFormat.HEADER_BYTES;
 	
 	// Constructor
 	public SegmentedLogger(String baseName) {
-		this.queue = new LinkedList<CrawlResult>();
+		this(baseName, 0, 0, -1);
+	}
+	
+	// Resume logging after a restart from a committed position - segmentCount and loggedCount as they were,
+	// and the flushedOffset() of segment segmentCount, or -1 to keep every segment there is
+	// Whatever was written after the position is cut off, since those results were not committed and are crawled again
+	// Starts a fresh segment after the ones kept, seals segments a crash left open and gzips uncompressed segments
+	// from older versions
+	public SegmentedLogger(String baseName, int segmentCount, long loggedCount, long committedOffset) {
 		this.baseName = baseName;
+		this.loggedCount = loggedCount;
+		if (committedOffset >= 0) {
+			try {
+				segmentCount = this.cutUncommitted(segmentCount, committedOffset);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		for (int segment = 0; segment < segmentCount || (committedOffset < 0 && this.segmentExists(segment)); segment++) {
+			final String name = this.segmentName(segment);
+			if ((new File(name)).exists()) {
+				compressor.execute(new Runnable() {
+					public void run() {
+						try {
+							SegmentFormat.seal(name);
+						} catch (IOException e) {
+							System.out.println("Failed to seal segment " + name + ": " + e);
+						}
+					}
+				});
+			} else if ((new File(this.oldName(segment))).exists()) {
+				compressor.execute(new GzipFileTask(this.oldName(segment)));
+			}
+			this.segmentCount = segment + 1;
+		}
+		
+		this.free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+		this.batches = new ArrayBlockingQueue<Batch>(BUFFER_COUNT + 1);
+		// Heap buffers - results are encoded, compressed and checksummed through array(), and a direct buffer would
+		// only add a copy on the way in
+		for (int i = 1; i < BUFFER_COUNT; i++) {
+			this.free.add(ByteBuffer.allocate(BATCH_BYTES));
+		}
+		this.active = ByteBuffer.allocate(BATCH_BYTES);
+		if (COMPRESS) {
+			this.deflater = new Deflater(LEVEL, true);
+		}
 		try {
-			this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.segmentName(), true)));
+			this.writerSegment = this.segmentCount;
+			this.openSegment();
 		} 
 		catch (Exception e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
+		this.writer = new Thread(new Runnable() {
+			public void run() { writeLoop(); }
+		}, "logger-" + baseName);
+		this.writer.setDaemon(true);
+		this.writer.start();
 	}
 	
 	// Convenience method to tell us current segmented file name
 	private String segmentName() {
-		return (this.baseName + "_" + this.segmentCount + this.EXTENSION);
+		return this.segmentName(this.segmentCount);
 	}
 	
-	// Add a result to the queue, flushing when appropriate
-	public void addResult(CrawlResult set) {
-		this.queue.add(set);
-		if (this.queue.size() == this.FLUSH_THRESHOLD) {
-			this.flush();
+	private String segmentName(int segment) {
+		return (this.baseName + "_" + segment + SegmentFormat.EXTENSION);
+	}
+	
+	// Segments written before the indexed format
+	private String oldName(int segment) {
+		return (this.baseName + "_" + segment + ".txt");
+	}
+	
+	private boolean segmentExists(int segment) {
+		return ((new File(this.segmentName(segment))).exists() || (new File(this.oldName(segment))).exists() 
+			|| (new File(this.oldName(segment) + ".gz")).exists());
+	}
+	
+	// Truncate the committed segment to its committed offset and delete the segments after it,
+	// returning how many segments are kept
+	private int cutUncommitted(int segmentCount, long committedOffset) throws IOException {
+		for (int segment = segmentCount + 1; this.segmentExists(segment); segment++) {
+			(new File(this.segmentName(segment))).delete();
+		}
+		File committed = new File(this.segmentName(segmentCount));
+		if (!committed.exists()) {
+			return segmentCount;
 		}
+		if (committedOffset <= SegmentFormat.HEADER_BYTES) {
+			committed.delete();
+			return segmentCount;
+		}
+		FileChannel channel = FileChannel.open(committed.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// A segment closed right at the position keeps its index
+			long[] trailer = SegmentFormat.readTrailer(channel);
+			if (trailer == null || trailer[0] != committedOffset) {
+				channel.truncate(committedOffset);
+				channel.force(false);
+			}
+		} finally {
+			channel.close();
+		}
+		return segmentCount + 1;
 	}
 	
-	// Flush the queue, and segment if necessary
-	public void flush() {
+	// Start the writer's segment with the format header
+	private void openSegment() throws IOException {
+		this.output = FileChannel.open(Paths.get(this.segmentName(this.writerSegment)), 
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		SegmentFormat.writeHeader(this.output);
+		this.outputPosition = SegmentFormat.HEADER_BYTES;
+		this.output.position(this.outputPosition);
+		this.index.clear();
+	}
+	
+	// Encode a result into the active buffer, rolling to a new segment when this one is full
+	// A large account is logged as PARTIAL records followed by its SUCCESS record, each holding a chunk of followers,
+	// and a recrawl after a failure may log some chunks twice - readers take the union. If the crawl fails instead,
+	// the controller logs the failure here too, and readers drop every chunk of an id with a failure record
+	public void addResult(CrawlResult set) {
+		this.bufferLock.lock();
 		try {
-			int writeCount = this.queue.size();
-			while (this.queue.size() > 0) {
-				this.writeResult(this.queue.removeFirst());
+			int maxBytes = SegmentFormat.maxRecordBytes(set);
+			if (this.active.remaining() < maxBytes && this.active.position() > 0) {
+				this.handOff(Batch.DATA, null);
+			}
+			if (this.active.remaining() < maxBytes) {
+				this.handOffLarge(set, maxBytes);
+			} else {
+				this.active.position(SegmentFormat.encode(set, this.active.array(), this.active.position()));
+				if (this.activeIdCount == this.activeIds.length) {
+					this.activeIds = Arrays.copyOf(this.activeIds, this.activeIdCount * 2);
+					this.activeEnds = Arrays.copyOf(this.activeEnds, this.activeIdCount * 2);
+				}
+				this.activeIds[this.activeIdCount] = set.getTwitterId();
+				this.activeEnds[this.activeIdCount++] = this.active.position();
 			}
-			this.output.flush();
-			this.loggedCount += writeCount;			
-			if (this.loggedCount % this.SEGMENT_THRESHOLD == 0 && this.loggedCount > 0) {
-				this.segment();
+			this.loggedCount++;
+			this.segmentLogged++;
+			if (this.segmentLogged >= this.SEGMENT_THRESHOLD) {
+				this.handOff(Batch.ROLL, null);
+				this.segmentCount += 1;
+				this.segmentLogged = 0;
 			}
+		} finally {
+			this.bufferLock.unlock();
 		}
-		catch (Exception e) {
+	}
+	
+	// Hand everything logged so far to the writer and wait until it is written - and forced, if fsyncOnFlush
+	public void flush() {
+		CountDownLatch written = new CountDownLatch(1);
+		this.bufferLock.lock();
+		try {
+			this.handOff(Batch.FLUSH, written);
+		} finally {
+			this.bufferLock.unlock();
+		}
+		this.await(written);
+	}
+	
+	// Queue the active buffer for the writer and take a free one - this is where back-pressure applies
+	// Caller holds bufferLock
+	private void handOff(int action, CountDownLatch done) {
+		try {
+			this.active.flip();
+			this.batches.put(new Batch(this.active, Arrays.copyOf(this.activeIds, this.activeIdCount), Arrays.copyOf(this.activeEnds, this.activeIdCount), true, action, done));
+			this.activeIdCount = 0;
+			this.active = this.free.take();
+		} catch (InterruptedException e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
 	}
 	
-	// Does not flush
-	private void writeResult(CrawlResult set) throws IOException {
-		this.output.writeInt(set.getTwitterId());
-		this.output.writeInt(set.getResult().toInt());
-		if (set.isSuccessful()) {
-			int[] followers = set.getFollowers();
-			this.output.writeInt(followers.length);
-			for (int followerId : followers) {
-				this.output.writeInt(followerId);
-			}
+	// A record bigger than a whole buffer gets a block of its own
+	private void handOffLarge(CrawlResult set, int maxBytes) {
+		try {
+			ByteBuffer large = ByteBuffer.allocate(maxBytes);
+			large.position(SegmentFormat.encode(set, large.array(), 0));
+			large.flip();
+			this.batches.put(new Batch(large, new int[] { set.getTwitterId() }, new int[] { large.limit() }, false, Batch.DATA, null));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
 		}
 	}
 	
-	// Close the current segment and make a new one
-	private void segment() {
+	private void await(CountDownLatch latch) {
 		try {
-			// Close the segment, gzip it 
-			this.output.close();
-			Thread gzipper = new Thread(new GzipFileTask(this.segmentName()));
-			gzipper.start();
-			
-			// Increment the segment count and create the new segment
-			this.segmentCount += 1;
-			this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.segmentName(), true)));
+			latch.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-1);
 		}
-		catch (Exception e) {
+	}
+	
+	// Writer thread - write each batch as a block, then act on rolls, flushes and closes
+	private void writeLoop() {
+		ArrayList<Batch> taken = new ArrayList<Batch>();
+		try {
+			while (true) {
+				Batch first = this.batches.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					this.takeIdle();
+					this.forceIfDue(false);
+					continue;
+				}
+				taken.add(first);
+				this.batches.drainTo(taken);
+				
+				for (Batch batch : taken) {
+					this.writeBlocks(batch);
+					if (batch.action == Batch.DATA) {
+						continue;
+					}
+					this.forceIfDue(batch.action == Batch.FLUSH && FSYNC_ON_FLUSH);
+					this.flushedOffset = this.outputPosition;
+					if (batch.action == Batch.ROLL || batch.action == Batch.CLOSE) {
+						this.closeSegment();
+					}
+					if (batch.action == Batch.ROLL) {
+						this.writerSegment++;
+						this.openSegment();
+						this.flushedOffset = this.outputPosition;
+					}
+					if (batch.done != null) {
+						batch.done.countDown();
+					}
+					if (batch.action == Batch.CLOSE) {
+						return;
+					}
+				}
+				taken.clear();
+			}
+		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(-1);
 		}
 	}
 	
+	// Cut a batch into blocks of about BLOCK_BYTES at record boundaries, and return its buffer to the free list
+	private void writeBlocks(Batch batch) throws IOException {
+		int start = 0;
+		int first = 0;
+		for (int i = 0; i < batch.ids.length; i++) {
+			if (batch.ends[i] - start >= BLOCK_BYTES || i == batch.ids.length - 1) {
+				this.writeBlock(batch.buffer.array(), start, batch.ends[i] - start, batch.ids, batch.ends, first, i + 1);
+				start = batch.ends[i];
+				first = i + 1;
+			}
+		}
+		if (batch.pooled) {
+			batch.buffer.clear();
+			this.free.add(batch.buffer);
+		}
+	}
+	
+	// Write records as one block, deflated unless that does not make it smaller, and index records [first, last)
+	private void writeBlock(byte[] raw, int offset, int rawLength, int[] ids, int[] ends, int first, int last) throws IOException {
+		byte[] stored = raw;
+		int storedOffset = offset;
+		int storedLength = rawLength;
+		byte codec = SegmentFormat.RAW;
+		if (COMPRESS) {
+			int deflated = this.deflate(raw, offset, rawLength);
+			if (deflated < rawLength) {
+				stored = this.compressed;
+				storedOffset = 0;
+				storedLength = deflated;
+				codec = SegmentFormat.DEFLATE;
+			}
+		}
+		this.crc.reset();
+		this.crc.update(stored, storedOffset, storedLength);
+		this.blockHeader.clear();
+		this.blockHeader.putInt(storedLength).putInt(rawLength).putInt((int)this.crc.getValue()).put(codec).flip();
+		
+		ByteBuffer[] buffers = new ByteBuffer[] { this.blockHeader, ByteBuffer.wrap(stored, storedOffset, storedLength) };
+		long bytes = SegmentFormat.BLOCK_HEADER_BYTES + storedLength;
+		long written = 0;
+		while (written < bytes) {
+			written += this.output.write(buffers);
+		}
+		
+		for (int i = first; i < last; i++) {
+			this.index.add(ids[i], this.outputPosition, ((i == first) ? offset : ends[i - 1]) - offset);
+		}
+		this.outputPosition += bytes;
+		this.unforcedBytes += bytes;
+	}
+	
+	// Deflate into the compressed buffer, growing it as needed - returns the deflated length
+	private int deflate(byte[] raw, int offset, int length) {
+		this.deflater.reset();
+		this.deflater.setInput(raw, offset, length);
+		this.deflater.finish();
+		if (this.compressed.length < length + 64) {
+			this.compressed = new byte[length + length / 8 + 64];
+		}
+		int deflated = 0;
+		while (!this.deflater.finished()) {
+			if (deflated == this.compressed.length) {
+				this.compressed = Arrays.copyOf(this.compressed, this.compressed.length * 2);
+			}
+			deflated += this.deflater.deflate(this.compressed, deflated, this.compressed.length - deflated);
+		}
+		return deflated;
+	}
+	
+	// Nothing queued for a while - take a partly filled active buffer, unless the caller is busy with it
+	private void takeIdle() throws IOException {
+		if (this.bufferLock.tryLock()) {
+			try {
+				if (this.active.position() > 0 && this.free.size() > 0) {
+					this.handOff(Batch.DATA, null);
+				}
+			} finally {
+				this.bufferLock.unlock();
+			}
+		}
+	}
+	
+	private void forceIfDue(boolean always) throws IOException {
+		long now = System.currentTimeMillis();
+		if (this.unforcedBytes > 0 && (always 
+				|| (FSYNC_BYTES > 0 && this.unforcedBytes >= FSYNC_BYTES) 
+				|| (FSYNC_MILLIS > 0 && now - this.lastForce >= FSYNC_MILLIS))) {
+			this.output.force(false);
+			this.unforcedBytes = 0;
+			this.lastForce = now;
+		}
+	}
+	
+	// Write the index and close the writer's segment
+	private void closeSegment() throws IOException {
+		this.index.write(this.output, this.outputPosition);
+		this.output.force(false);
+		this.unforcedBytes = 0;
+		this.output.close();
+	}
+	
 	// Access functions - logged so far
 	public long loggedCount() { return this.loggedCount; }
-	public long queueSize() { return this.queue.size(); }
+	public int segmentCount() { return this.segmentCount; }
+	
+	// End of what the last flush() wrote to segment segmentCount() - with loggedCount() and segmentCount(),
+	// the position to resume from once flush() has returned and nothing else is being logged
+	public long flushedOffset() { return this.flushedOffset; }
 	
-	// Close the current segment
+	// Write out everything, close the current segment and stop the writer
 	public void close() {
+		CountDownLatch closed = new CountDownLatch(1);
+		this.bufferLock.lock();
 		try {
-			this.flush();
-			this.output.close();
+			this.handOff(Batch.CLOSE, closed);
+		} finally {
+			this.bufferLock.unlock();
 		}
-		catch (IOException e) {
-			e.printStackTrace();
-			System.exit(-1);
+		this.await(closed);
+	}
+	
+	// Testing program - kill a logging process at random several times, resuming each time from the position it
+	// last committed, and check every result comes back exactly once and in order
+	// The child logs ids from one on, and every thousand results flushes and commits its position to a file
+	// Usage: SegmentedLogger [rounds]
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("child")) {
+			child(args[1]);
+			return;
+		}
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		String baseName = System.getProperty("java.io.tmpdir") + File.separator + "resume_" + System.currentTimeMillis();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Random random = new Random();
+		for (int round = 0; round < rounds; round++) {
+			Process process = (new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), 
+				SegmentedLogger.class.getName(), "child", baseName)).inheritIO().start();
+			Thread.sleep(1000 + random.nextInt(2000));
+			process.destroyForcibly().waitFor();
+			System.out.println("Killed after " + readPosition(baseName)[3] + " committed");
+		}
+		
+		// Resume once more, log some more and close
+		long[] position = readPosition(baseName);
+		SegmentedLogger logger = new SegmentedLogger(baseName, (int)position[0], position[1], position[2]);
+		int last = (int)position[3] + 10000;
+		for (int twitterId = (int)position[3] + 1; twitterId <= last; twitterId++) {
+			logger.addResult(result(twitterId));
+		}
+		logger.close();
+		compressor.submit(new Runnable() { public void run() {} }).get();
+		
+		// Every id once, in order
+		int expected = 1;
+		boolean ok = (logger.loggedCount() == last);
+		for (String fileName : SegmentReader.segments(baseName)) {
+			SegmentReader reader = SegmentReader.open(fileName);
+			CrawlResult result;
+			while ((result = reader.next()) != null) {
+				ok &= (result.getTwitterId() == expected++) && Arrays.equals(result.getFollowers(), result(result.getTwitterId()).getFollowers());
+			}
+			reader.close();
 		}
+		ok &= (expected == last + 1);
+		System.out.println((expected - 1) + " results read back, " + last + " logged in " + SegmentReader.segments(baseName).size() + " segments");
+		System.out.println(ok ? "OK" : "FAILED");
+	}
+	
+	// Log until killed, resuming from the committed position if there is one
+	private static void child(String baseName) throws IOException {
+		long[] position = readPosition(baseName);
+		SegmentedLogger logger = (position == null) ? new SegmentedLogger(baseName) 
+			: new SegmentedLogger(baseName, (int)position[0], position[1], position[2]);
+		File temp = new File(baseName + "_position.tmp");
+		for (int twitterId = (position == null) ? 1 : (int)position[3] + 1; ; twitterId++) {
+			logger.addResult(result(twitterId));
+			if (twitterId % 1000 == 0) {
+				logger.flush();
+				DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+				out.writeInt(logger.segmentCount());
+				out.writeLong(logger.loggedCount());
+				out.writeLong(logger.flushedOffset());
+				out.writeInt(twitterId);
+				out.close();
+				Files.move(temp.toPath(), Paths.get(baseName + "_position"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+	}
+	
+	// Segment count, logged count, flushed offset and last id committed, or null if there is no position yet
+	private static long[] readPosition(String baseName) throws IOException {
+		File file = new File(baseName + "_position");
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return new long[] { in.readInt(), in.readLong(), in.readLong(), in.readInt() };
+		} finally {
+			in.close();
+		}
+	}
+	
+	// Result logged for an id - a few followers that depend on it
+	private static CrawlResult result(int twitterId) {
+		int[] followers = new int[twitterId % 7];
+		for (int i = 0; i < followers.length; i++) {
+			followers[i] = twitterId + i * 3;
+		}
+		return new CrawlResult(twitterId, ResultCode.SUCCESS, followers);
+	}
+}
+
+// A buffer for the writer, the ids and end positions of the records in it, and what to do once it is written
+class Batch {
+	static final int DATA = 0;
+	static final int FLUSH = 1;
+	static final int ROLL = 2;
+	static final int CLOSE = 3;
+	
+	ByteBuffer buffer;
+	int[] ids;
+	int[] ends;
+	boolean pooled;		// Goes back to the free list once written
+	int action;
+	CountDownLatch done;
+	
+	Batch(ByteBuffer buffer, int[] ids, int[] ends, boolean pooled, int action, CountDownLatch done) {
+		this.buffer = buffer;
+		this.ids = ids;
+		this.ends = ends;
+		this.pooled = pooled;
+		this.action = action;
+		this.done = done;
 	}
 }
 
@@ -124,7 +578,8 @@ class GzipFileTask implements Runnable {
 			
 			// Gzip file
 			byte[] buff = new byte[4096];
-			while (in.read(buff) > 0) {	out.write(buff); }
+			int read;
+			while ((read = in.read(buff)) > 0) { out.write(buff, 0, read); }
 			in.close();
 			out.finish();
 			out.close();
@@ -0,0 +1,233 @@
+package controller;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import message.*;
+
+// One worker or peer connection - reads and writes are only done on the selector loop thread
+// Once registered, or once a peer's opening probe is verified, frames are decoded and ingested by the controller's ingest
+// threads, one drain at a time per connection so results stay in order - reading stops while BACKLOG_MAX frames wait,
+// so a slow controller pushes back on the worker or peer through TCP rather than buffering without end
+class Connection {
+	private static final int BACKLOG_MAX = 16;
+
+	private Controller controller;
+	private Registrar registrar;
+	private SocketChannel channel;
+	SelectionKey key;
+	volatile long lastActive = System.currentTimeMillis();
+
+	private volatile Session session = null;
+	private WorkerRemote worker = null;
+	private boolean peer = false;	// Only forwards and probes from here on
+	private ByteBuffer header = ByteBuffer.allocate(4);
+	private ByteBuffer payload = null;
+	private LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();	// Explicitly synchronize
+	private ConcurrentLinkedQueue<ByteBuffer> frames = new ConcurrentLinkedQueue<ByteBuffer>();
+	private AtomicInteger backlog = new AtomicInteger();
+	private AtomicBoolean draining = new AtomicBoolean();
+	private volatile boolean paused = false;
+
+	Connection(Controller controller, Registrar registrar, SocketChannel channel) {
+		this.controller = controller;
+		this.registrar = registrar;
+		this.channel = channel;
+	}
+
+	boolean isOpen() { return this.channel.isOpen(); }
+	boolean isAwaiting() { return (this.worker != null && !this.worker.nonePending()); }
+	boolean isWorker() { return (this.worker != null); }
+
+	// Queue a message for the loop thread to write - safe to call from any thread
+	void send(Message m) throws IOException {
+		this.send(m, this.session);
+	}
+
+	private void send(Message m, Session session) throws IOException {
+		ByteBuffer frame = MessageCodec.encode(m, session);
+		synchronized (this.writes) {
+			this.writes.add(frame);
+		}
+		this.lastActive = System.currentTimeMillis();
+		this.registrar.requestWrite(this);
+	}
+
+	// Write as much as the socket takes, waiting for OP_WRITE if it fills up
+	void flush() {
+		try {
+			synchronized (this.writes) {
+				while (this.writes.size() > 0) {
+					ByteBuffer frame = this.writes.getFirst();
+					this.channel.write(frame);
+					if (frame.hasRemaining()) {
+						break;
+					}
+					this.writes.removeFirst();
+				}
+				if (this.key.isValid()) {
+					this.key.interestOps((this.paused ? 0 : SelectionKey.OP_READ) | (this.writes.size() > 0 ? SelectionKey.OP_WRITE : 0));
+				}
+			}
+		} catch (IOException e) {
+			this.close();
+		}
+	}
+
+	// Read whatever is available and hand off every complete frame
+	void read() {
+		try {
+			while (true) {
+				if (this.payload == null) {
+					if (this.channel.read(this.header) < 0) {
+						throw new EOFException();
+					}
+					if (this.header.hasRemaining()) {
+						return;
+					}
+					// Until a register or probe has been verified, whoever connected gets no more than a small frame -
+					// otherwise anyone could have the loop thread allocate and sign MAX_FRAME bytes
+					int length = this.header.getInt(0);
+					int max = (this.worker != null || this.peer) ? MessageCodec.MAX_FRAME : MessageCodec.MAX_OPENING_FRAME;
+					if (length < 0 || length > max) {
+						throw new IOException("Bad frame length " + length);
+					}
+					this.payload = ByteBuffer.allocate(length);
+				}
+				if (this.channel.read(this.payload) < 0) {
+					throw new EOFException();
+				}
+				if (this.payload.hasRemaining()) {
+					return;
+				}
+
+				this.lastActive = System.currentTimeMillis();
+				this.payload.flip();
+				ByteBuffer frame = this.payload;
+				this.header.clear();
+				this.payload = null;
+				if (this.worker == null && !this.peer) {
+					this.handle(MessageCodec.decode(frame, (this.session == null) ? Session.handshake(Secret.SECRET) : this.session));
+				} else {
+					this.frames.add(frame);
+					if (this.backlog.incrementAndGet() >= BACKLOG_MAX) {
+						this.pause();
+					}
+					this.scheduleDrain();
+					if (this.paused) {
+						return;
+					}
+				}
+			}
+		} catch (EOFException e) {
+			this.close();	// The other side closed
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.close();
+		}
+	}
+
+	// Frames before the connection belongs to a worker or peer - decoding has already checked the tag and sequence number
+	private void handle(Message m) throws IOException {
+		if (this.session == null) {
+			if (!(m instanceof HelloMessage)) {
+				throw new RuntimeException("Not a hello message");
+			}
+			// Answer with our nonce under the shared secret, and sign everything after with the key both sides derive
+			byte[] nonce = Session.nonce();
+			this.send(new AcknowledgementMessage(nonce), Session.handshake(Secret.SECRET));
+			this.session = Session.derive(Secret.SECRET, ((HelloMessage)m).getNonce(), nonce, false);
+		} else if (m instanceof ProbeMessage) {
+			this.peer = true;
+			this.controller.receiveProbe((ProbeMessage)m, this);
+		} else if (!(m instanceof RegisterMessage)) {
+			throw new RuntimeException("Not a register message");
+		} else {
+			RegisterMessage rm = (RegisterMessage)m;
+			this.worker = new WorkerRemote(rm.getName(), rm.getUsername(), rm.getWindow(), rm.getConcurrency(), rm.getRequestsPerHour(), this.controller, this);
+			this.controller.addWorker(this.worker);
+		}
+	}
+
+	// Stop reading until the ingest threads catch up - the backlog is checked again after the flag is set,
+	// as the drain may have emptied it in between and would then never resume reading
+	private void pause() {
+		this.paused = true;
+		synchronized (this.writes) {
+			if (this.key.isValid()) {
+				this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		}
+		if (this.backlog.get() <= BACKLOG_MAX / 2) {
+			this.resume();
+		}
+	}
+
+	// Ask the loop thread to read again - flush sets the interest ops
+	private void resume() {
+		this.paused = false;
+		this.registrar.requestWrite(this);
+	}
+
+	private void scheduleDrain() {
+		if (this.draining.compareAndSet(false, true)) {
+			this.controller.ingest(new Runnable() {
+				public void run() { drain(); }
+			});
+		}
+	}
+
+	// Decode and ingest waiting frames in arrival order - run by an ingest thread
+	// Pending and the window are updated before the results go in, so a worker dropping in between never rolls
+	// back an id the controller has already recorded
+	private void drain() {
+		do {
+			ByteBuffer frame;
+			while ((frame = this.frames.poll()) != null) {
+				try {
+					Message m = MessageCodec.decode(frame, this.session);
+					if (this.peer) {
+						if (m instanceof ForwardMessage) {
+							this.controller.receiveForward((ForwardMessage)m, this);
+						} else if (m instanceof ProbeMessage) {
+							this.controller.receiveProbe((ProbeMessage)m, this);
+						} else {
+							throw new IOException("Unexpected message from a peer");
+						}
+					} else if (m instanceof CrawlResultMessage) {
+						this.worker.receiveResults((CrawlResultMessage)m);
+						this.controller.ingest(((CrawlResultMessage)m).getResults());
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					this.close();
+				}
+				this.lastActive = System.currentTimeMillis();
+				if (this.backlog.decrementAndGet() <= BACKLOG_MAX / 2 && this.paused) {
+					this.resume();
+				}
+			}
+			this.draining.set(false);
+		} while (!this.frames.isEmpty() && this.draining.compareAndSet(false, true));
+	}
+
+	void close() {
+		if (!this.channel.isOpen()) {
+			return;
+		}
+		try {
+			if (this.key != null) {
+				this.key.cancel();
+			}
+			this.channel.close();
+		} catch (IOException e) {}
+		if (this.worker != null) {
+			this.worker.stop();
+		}
+	}
+}
@@ -2,37 +2,58 @@ package controller;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import common.*;
 import message.*;
 
 // Multithreading considerations
-//	crawled, pending, failed, queue, successLog, failLog are only accessed by main controller thread
-//	usedPads, workers are accessed by registrar and main controller thread
+//	queue, peer batches are only accessed by main controller thread
+//	state, journal, successLog, failLog are shared with the ingest threads - every state change is atomic per id,
+//	and each batch of results is ingested holding ingestLock for reading, so a commit or checkpoint taken
+//	under the write lock never sees a result half ingested
+//	workers, forwarded, probes, discovered are accessed by registrar, ingest threads and main controller thread
+// The main loop sleeps until signalled - results ingested, a worker coming or going, a forward arriving - or
+// WAIT_INTERVAL passes, so timed work like commits and probes still happens
+// Partitioned mode - N controllers each own the ids that hash to their partition, with their own frontier, state and logs
+//	Followers owned by another partition are forwarded to its controller in batches, and workers attach to any controller
+//	Batches are journaled and only sent once committed, and the owner acknowledges them once its own commit covers
+//	their ids, so a restart on either side loses none - see PeerLink
+//	Partition 0 detects the end - once idle, it probes every peer each PROBE_INTERVAL, and when two rounds in a row find
+//	every controller idle with the same count of batches received, it tells them all to finish. An idle controller
+//	has nothing queued, pending or unacknowledged, and only stops being idle by receiving a batch, so no batch was in
+//	flight and none arrived between the rounds - there was an instant when every controller was idle at once
 public class Controller {
 	private int JOB_MAX = 2000;
+	private int BATCH_SECONDS = 120;
+	private long COMMIT_INTERVAL = 1000;
+	private long CHECKPOINT_INTERVAL = 600000;
+	private int FORWARD_BATCH = 20000;
+	private long PROBE_INTERVAL = 1000;
+	private long WAIT_INTERVAL = 200;
+	private int INGEST_THREADS = Integer.getInteger("controller.ingestThreads", Runtime.getRuntime().availableProcessors());
 	
-	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
 	private ExecutorService threadPool;
+	private ExecutorService ingestPool;
 	private LinkedList<WorkerRemote> workers;	// Explicitly synchronize
 	private Registrar registrar;
 	
-	private HashSet<String> usedPads;			// Explicitly synchronize
-	
-	// Hash sets that keep track of jobs
+	// Compact store that keeps track of jobs
 	private int seed;
-	private HashSet<Integer> crawled;
-	private HashSet<Integer> pending;
-	private HashSet<Integer> failed;
+	private CrawlState state;
 	
 	// Timing and stats
-	private long crawlCount = 0;
+	private AtomicLong crawlCount = new AtomicLong();
 	private long startTime;
 	
-	// File based queue 
-	private IntFileQueue queue;
+	// File based frontier, ordered by -Dfrontier.score
+	private PriorityFrontier queue;
 	
 	// Logs to hold successful and failed cases
 	private SegmentedLogger successLog;
@@ -41,25 +62,91 @@ public class Controller {
 	// Log for status
 	private Logger statusLog;
 	
+	// Partition owned and links to the other partitions' controllers - peers is null when not partitioned,
+	// and peers[partition] is always null
+	private int partition = 0;
+	private PeerLink[] peers = null;
+	private ConcurrentLinkedQueue<ForwardMessage> forwarded = new ConcurrentLinkedQueue<ForwardMessage>();
+	private ConcurrentLinkedQueue<ProbeMessage> probes = new ConcurrentLinkedQueue<ProbeMessage>();
+	private AtomicReferenceArray<Connection> peerConnections;	// Latest from each peer, for its statuses
+	
+	// Per peer, the last of its batches queued here, the last committed, which is what it is told, the last probe
+	// round it sent and whether it is owed a status - only accessed by the main controller thread
+	private long[] applied;
+	private long[] acknowledged;
+	private long[] probeRounds;
+	private boolean[] statusDue;
+	private long receivedBatches = 0;
+	
+	// Termination detection, run by partition 0 - the received counts of the last round if it found everyone idle
+	private long probeRound = 0;
+	private boolean probing = false;
+	private long lastProbe = 0;
+	private long[] lastCounts = null;
+	private boolean finishing = false;
+	
+	// Followers of ingested results, waiting for the main thread to add them to the frontier or forward them
+	private ConcurrentLinkedQueue<Discovered> discovered = new ConcurrentLinkedQueue<Discovered>();
+	private ReentrantReadWriteLock ingestLock = new ReentrantReadWriteLock();
+	
+	// Wakes the main loop
+	private Object signal = new Object();
+	private boolean signalled = false;
+	
+	// Checkpoint and journal of changes since, so a restarted controller can resume
+	private String baseName;
+	private Journal journal;
+	private long generation = 0;
+	private long lastCommit;
+	private long lastCheckpoint;
+	
 	public Controller(int listenPort, int seed, String baseName) {
+		this(listenPort, seed, baseName, 0, null);
+	}
+	
+	// One of peerAddresses.length partitioned controllers - peerAddresses lists every controller as host:port,
+	// in partition order, and the entry for this partition is skipped
+	public Controller(int listenPort, int seed, String baseName, int partition, String[] peerAddresses) {
+		this.partition = partition;
+		if (peerAddresses != null && peerAddresses.length > 1) {
+			this.peers = new PeerLink[peerAddresses.length];
+			for (int i = 0; i < peerAddresses.length; i++) {
+				if (i != partition) {
+					this.peers[i] = new PeerLink(partition, peerAddresses[i]);
+				}
+			}
+			this.peerConnections = new AtomicReferenceArray<Connection>(peerAddresses.length);
+			this.applied = new long[peerAddresses.length];
+			this.acknowledged = new long[peerAddresses.length];
+			this.probeRounds = new long[peerAddresses.length];
+			this.statusDue = new boolean[peerAddresses.length];
+		}
 		try {
-			this.serverSocket = new ServerSocket(listenPort);
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.socket().bind(new InetSocketAddress(listenPort));
 			this.threadPool = Executors.newCachedThreadPool();
+			this.ingestPool = Executors.newFixedThreadPool(INGEST_THREADS);
 			this.workers = new LinkedList<WorkerRemote>();	
-			this.registrar = new Registrar(this, this.serverSocket);
+			this.registrar = new Registrar(this, this.serverChannel);
 			
-			this.usedPads = new HashSet<String>();
-			this.crawled = new HashSet<Integer>();
-			this.pending = new HashSet<Integer>();
-			this.failed = new HashSet<Integer>();
+			this.state = new CrawlState();
 			
 			this.seed = seed;
-			this.queue = new IntFileQueue();
-			
-			// Establish the logs
-			this.successLog = new SegmentedLogger(baseName + "_s");
-			this.failLog = new SegmentedLogger(baseName + "_f");
+			this.baseName = baseName;
+			this.queue = new PriorityFrontier(baseName + "_q", PriorityFrontier.score(System.getProperty("frontier.score", "discoveries")));
 			this.statusLog = new Logger("controller_log.txt");
+			
+			// Resume from the last checkpoint, or establish the logs and throw in the seed
+			if ((new File(this.checkpointName())).exists()) {
+				this.resume();
+			} else {
+				this.successLog = new SegmentedLogger(baseName + "_s");
+				this.failLog = new SegmentedLogger(baseName + "_f");
+				if (this.owner(this.seed) == this.partition) {
+					this.queue.requeue(this.seed);
+				}
+				this.checkpoint();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(-1);
@@ -68,94 +155,401 @@ public class Controller {
 	
 	public void start() {
 		try {
-			// Start the server socket
+			// Start the selector loop serving registrations and worker connections, and the peer senders
 			this.threadPool.execute(this.registrar);
-			
-			// Throw in the seed
-			this.queue.enqueue(this.seed);
+			if (this.peers != null) {
+				for (PeerLink peer : this.peers) {
+					if (peer != null) {
+						this.threadPool.execute(peer);
+					}
+				}
+			}
 			
 			// Record start time
 			this.startTime = System.currentTimeMillis();
 			
 			// Main job loop
-			while (this.queue.size() > 0 || this.pending.size() > 0) {
-				this.retrieveResults();
+			while (!this.finished()) {
+				this.awaitWork();
+				this.receiveForwarded();
+				this.receiveProbes();
+				this.appendDiscovered();
 				this.handleFailures();
 				this.assignJobs();
+				this.persist();
+				this.answerPeers();
+				this.probe();
 			}			
 			
-			// Shut down workers
+			// Shut down workers, let the ingest threads finish what they have, then write out what peer links hold
 			synchronized(this.workers) { for (WorkerRemote worker : this.workers) worker.stop(); }
+			this.ingestPool.shutdown();
+			this.ingestPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			this.appendDiscovered();
+			if (this.peers != null) {
+				for (PeerLink peer : this.peers) {
+					if (peer != null) {
+						peer.stop();
+					}
+				}
+			}
+			this.checkpoint();
 			this.successLog.close();
 			this.failLog.close();
 			this.threadPool.shutdownNow();
 			
 			// Log done, close logs
-			this.statusLog.logStatus("DONE " + (this.successLog.loggedCount() + this.failLog.loggedCount()) + " users crawled.");
-			this.statusLog.logStatus("SUCCESS: " + this.successLog.loggedCount());
-			this.statusLog.logStatus("FAIL: " + this.failLog.loggedCount());
+			// From the state store - the success log also holds PARTIAL chunks and a record of every failure
+			long crawled = this.state.count(CrawlState.CRAWLED);
+			long failed = this.state.count(CrawlState.FAILED);
+			this.statusLog.logStatus("DONE " + (crawled + failed) + " users crawled.");
+			this.statusLog.logStatus("SUCCESS: " + crawled);
+			this.statusLog.logStatus("FAIL: " + failed);
 			this.statusLog.close();
 		} catch (Exception e) {
 			this.statusLog.logError(e.toString());
 		}
 	}
 	
-	// Check for results, grab and log results, enqueue more to crawl
-	private void retrieveResults() {
-		synchronized (this.workers) {
-			Iterator<WorkerRemote> iter = this.workers.iterator();
-			while (iter.hasNext()) {
-				WorkerRemote current = iter.next();
-				LinkedList<CrawlResult> results = current.popResults();
-				if (results.size() > 0) {
-					for (CrawlResult result : results) {
-						int twitterId = result.getTwitterId();
-					
-						// Update the status of the twitter id in the tracking hashes and log it as well
-						this.pending.remove(twitterId);
-						if (result.getResult() == ResultCode.SUCCESS) {
-							this.crawled.add(twitterId);
-							this.successLog.addResult(result);
-						} else {
-							this.failed.add(twitterId);
-							this.failLog.addResult(result);
-						}
-						
-						// Loop through the followers - only enqueue those we have not processed already
-						LinkedList<Integer> toEnqueue = new LinkedList<Integer>();
-						for (int followerId : result.getFollowers()) {
-							if (!this.processed(followerId)) {
-								toEnqueue.add(followerId);						
-							}
-						}
-						this.queue.enqueue(toEnqueue);
-						
-						// Log a status message every 10k crawled
-						this.crawlCount++;
-						if (crawlCount % 10000 == 0 && crawlCount > 0) {
-							long nowMilliseconds = System.currentTimeMillis();
-							this.statusLog.logStatus("Crawled " + this.crawlCount + " at " + ((nowMilliseconds - this.startTime)/1000) + " seconds.");
-						}
+	// Run a drain of a connection's frames on the ingest threads
+	void ingest(Runnable task) {
+		this.ingestPool.execute(task);
+	}
+	
+	// Log results and record their state, and hand their followers to the main thread
+	// Called by ingest threads - many at once, each with the results of one message in the order they came
+	void ingest(CrawlResult[] results) {
+		this.ingestLock.readLock().lock();
+		try {
+			for (CrawlResult result : results) {
+				int twitterId = result.getTwitterId();
+				
+				// Update the status of the twitter id in the state store and log it as well
+				// Partial chunks are logged and their followers enqueued while the id stays pending
+				// A reclaimed id may come back from both workers - keep the first
+				if (result.isPartial()) {
+					if (CrawlState.isFinal(this.state.get(twitterId))) {
+						continue;
+					}
+					this.successLog.addResult(result);
+				} else {
+					boolean success = (result.getResult() == ResultCode.SUCCESS);
+					int state = success ? CrawlState.CRAWLED : CrawlState.FAILED;
+					if (!this.state.complete(twitterId, state)) {
+						continue;
+					}
+					this.journal.recordState(twitterId, state);
+					(success ? this.successLog : this.failLog).addResult(result);
+					if (!success) {
+						// Also in the success log, where readers take it to drop any PARTIAL chunks logged before
+						// the crawl failed - after a restart or reclaim there is no telling whether there were any
+						this.successLog.addResult(result);
 					}
 				}
+				
+				// Keep the followers we have not processed already - the main thread checks again as it queues them
+				// Repeats within a result are dropped first, so each counts as one discovery, and the degree
+				// they are scored by is the size of the account they were found under
+				int[] followers = result.getFollowers();
+				int unique = sortUnique(followers);
+				int kept = 0;
+				for (int i = 0; i < unique; i++) {
+					if (!this.processed(followers[i])) {
+						followers[kept++] = followers[i];
+					}
+				}
+				if (kept > 0) {
+					this.discovered.add(new Discovered(followers, kept, unique));
+				}
+				if (result.isPartial()) {
+					continue;
+				}
+				
+				// Log a status message every 10k crawled
+				long crawled = this.crawlCount.incrementAndGet();
+				if (crawled % 10000 == 0) {
+					long nowMilliseconds = System.currentTimeMillis();
+					this.statusLog.logStatus("Crawled " + crawled + " at " + ((nowMilliseconds - this.startTime)/1000) + " seconds.");
+				}
+			}
+		} finally {
+			this.ingestLock.readLock().unlock();
+		}
+		this.signal();
+	}
+	
+	// Queue or forward the followers the ingest threads found
+	private void appendDiscovered() {
+		Discovered found;
+		while ((found = this.discovered.poll()) != null) {
+			for (int i = 0; i < found.count; i++) {
+				this.discover(found.ids[i], found.degree);
+			}
+		}
+	}
+	
+	// Queue an id this partition owns and has not processed, or batch it for the controller that owns it
+	private void discover(int twitterId, int degree) {
+		int owner = this.owner(twitterId);
+		if (owner == this.partition) {
+			if (!this.processed(twitterId)) {
+				this.queue.discover(twitterId, degree);
+			}
+		} else {
+			this.peers[owner].add(twitterId, degree);
+			if (this.peers[owner].batchSize() >= FORWARD_BATCH) {
+				this.closeBatch(owner);
 			}
 		}
 	}
 	
-	// Assign jobs to workers with no pending ids
+	// Close a peer's open batch into the journal - it goes out after the next commit
+	private void closeBatch(int owner) {
+		ForwardMessage batch = this.peers[owner].close();
+		if (batch != null) {
+			this.journal.recordForward(owner, batch);
+		}
+	}
+	
+	// Partition that owns an id - hashed, since ids close together are often discovered together
+	private int owner(int twitterId) {
+		if (this.peers == null) {
+			return this.partition;
+		}
+		int hash = twitterId * 0x9E3779B9;
+		hash ^= hash >>> 16;
+		return (int)((hash & 0xFFFFFFFFL) % this.peers.length);
+	}
+	
+	// Close every open batch into the journal, before a commit or checkpoint
+	private void closeBatches() {
+		if (this.peers != null) {
+			for (int owner = 0; owner < this.peers.length; owner++) {
+				if (this.peers[owner] != null) {
+					this.closeBatch(owner);
+				}
+			}
+		}
+	}
+	
+	// Once a commit or checkpoint is written - send the batches it covers, and acknowledge what it queued from peers
+	private void committed() {
+		if (this.peers == null) {
+			return;
+		}
+		for (int i = 0; i < this.peers.length; i++) {
+			if (this.peers[i] != null) {
+				this.peers[i].release();
+				if (this.acknowledged[i] != this.applied[i]) {
+					this.acknowledged[i] = this.applied[i];
+					this.statusDue[i] = true;
+				}
+			}
+		}
+	}
+	
+	// Whether batches were queued from peers since the last commit - they are acknowledged once one covers them
+	private boolean acknowledgementsDue() {
+		return (this.peers != null && !Arrays.equals(this.applied, this.acknowledged));
+	}
+	
+	// Queue the ids peers forwarded since the last pass, skipping batches sent again after a reconnect
+	private void receiveForwarded() {
+		ForwardMessage m;
+		while ((m = this.forwarded.poll()) != null) {
+			if (m.getSequence() <= this.applied[m.getPartition()]) {
+				continue;
+			}
+			int[] degrees = m.getDegrees();
+			int[][] ids = m.getIds();
+			for (int i = 0; i < degrees.length; i++) {
+				for (int twitterId : ids[i]) {
+					if (!this.processed(twitterId)) {
+						this.queue.discover(twitterId, degrees[i]);
+					}
+				}
+			}
+			this.applied[m.getPartition()] = m.getSequence();
+			this.receivedBatches++;
+		}
+	}
+	
+	// Note the probes peers sent since the last pass - each is owed a status, and a finish ends the crawl here
+	private void receiveProbes() {
+		ProbeMessage m;
+		while ((m = this.probes.poll()) != null) {
+			this.probeRounds[m.getPartition()] = Math.max(this.probeRounds[m.getPartition()], m.getRound());
+			this.statusDue[m.getPartition()] = true;
+			if (m.isFinish()) {
+				this.finishing = true;
+			}
+		}
+	}
+	
+	// Send the statuses owed - a peer that has gone away probes again when it reconnects
+	private void answerPeers() {
+		if (this.peers == null) {
+			return;
+		}
+		boolean idle = false;
+		boolean checked = false;
+		for (int i = 0; i < this.peers.length; i++) {
+			Connection connection = this.peerConnections.get(i);
+			if (this.statusDue[i] && connection != null) {
+				if (!checked) {
+					idle = this.idle();
+					checked = true;
+				}
+				try {
+					connection.send(new PeerStatusMessage(this.acknowledged[i], this.probeRounds[i], idle, this.receivedBatches));
+				} catch (IOException e) {}
+			}
+			this.statusDue[i] = false;
+		}
+	}
+	
+	// Run termination detection on partition 0 - see the header
+	private void probe() {
+		if (this.peers == null || this.partition != 0 || this.finishing) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (this.probing) {
+			for (PeerLink peer : this.peers) {
+				if (peer != null && (peer.status() == null || peer.status().getRound() < this.probeRound)) {
+					return;
+				}
+			}
+			boolean idle = this.idle();
+			long[] counts = new long[this.peers.length];
+			for (int i = 0; i < this.peers.length; i++) {
+				if (this.peers[i] == null) {
+					counts[i] = this.receivedBatches;
+				} else {
+					PeerStatusMessage status = this.peers[i].status();
+					idle &= status.isIdle();
+					counts[i] = status.getReceived();
+				}
+			}
+			if (idle && Arrays.equals(counts, this.lastCounts)) {
+				this.statusLog.logStatus("Every partition is idle, finishing");
+				this.finishing = true;
+				for (PeerLink peer : this.peers) {
+					if (peer != null) {
+						peer.probe(this.probeRound, true);
+					}
+				}
+			}
+			this.lastCounts = idle ? counts : null;
+			this.probing = false;
+			this.lastProbe = now;
+		} else if (now - this.lastProbe >= PROBE_INTERVAL && this.idle()) {
+			this.probeRound++;
+			for (PeerLink peer : this.peers) {
+				if (peer != null) {
+					peer.probe(this.probeRound, false);
+				}
+			}
+			this.probing = true;
+		}
+	}
+	
+	// Accept a batch from a peer - called by an ingest thread draining the peer's connection
+	void receiveForward(ForwardMessage m, Connection connection) throws IOException {
+		this.checkPeer(m.getPartition());
+		this.peerConnections.set(m.getPartition(), connection);
+		this.forwarded.add(m);
+		this.signal();
+	}
+	
+	// Accept a probe from a peer - called for the one opening a peer's connection, and by ingest threads after
+	void receiveProbe(ProbeMessage m, Connection connection) throws IOException {
+		this.checkPeer(m.getPartition());
+		this.peerConnections.set(m.getPartition(), connection);
+		this.probes.add(m);
+		this.signal();
+	}
+	
+	private void checkPeer(int partition) throws IOException {
+		if (this.peers == null || partition < 0 || partition >= this.peers.length || partition == this.partition) {
+			throw new IOException("Not a peer partition " + partition);
+		}
+	}
+	
+	// Wake the main loop
+	void signal() {
+		synchronized (this.signal) {
+			this.signalled = true;
+			this.signal.notify();
+		}
+	}
+	
+	// Sleep until signalled, or at most WAIT_INTERVAL
+	private void awaitWork() {
+		synchronized (this.signal) {
+			if (!this.signalled) {
+				try {
+					this.signal.wait(WAIT_INTERVAL);
+				} catch (InterruptedException e) {}
+			}
+			this.signalled = false;
+		}
+	}
+	
+	// Done when idle, or partitioned, when partition 0 has found every controller idle
+	private boolean finished() {
+		return (this.peers == null) ? this.idle() : this.finishing;
+	}
+	
+	// Nothing queued, pending, or received from or still to send to peers
+	// An ingest thread may have completed the last pending id without handing over its followers yet, so
+	// before saying so, wait for ingestion to stop and queue what it found
+	private boolean idle() {
+		if (!this.quiet()) {
+			return false;
+		}
+		this.ingestLock.writeLock().lock();
+		try {
+			this.appendDiscovered();
+			return this.quiet();
+		} finally {
+			this.ingestLock.writeLock().unlock();
+		}
+	}
+	
+	private boolean quiet() {
+		if (this.queue.size() > 0 || this.state.count(CrawlState.PENDING) > 0 || !this.forwarded.isEmpty()) {
+			return false;
+		}
+		if (this.peers != null) {
+			for (PeerLink peer : this.peers) {
+				if (peer != null && !peer.isSettled()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	// Assign jobs to workers with credit, keeping up to two batches outstanding so they never wait on a round trip
+	// Half batches wait for more credit, unless the queue is nearly empty anyway
 	private void assignJobs() {
-		if (this.queue.size() > 0) {
-			synchronized(this.workers) {
+		synchronized(this.workers) {
+			if (this.queue.size() == 0) {
+				this.reclaimStragglers();
+			}
+			if (this.queue.size() > 0) {
 				Iterator<WorkerRemote> iter = this.workers.iterator();
 				while (iter.hasNext()) {
 					WorkerRemote current = iter.next();
-					if (current.isRunning() && current.nonePending()) {		
+					int batch = this.batchSize(current);
+					long credit = Math.min(Math.min(current.credit(), 2L * batch - current.pendingCount()), batch);
+					if (current.isRunning() && credit > 0 && (credit >= batch / 2 || this.queue.size() < batch / 2)) {
 						LinkedList<Integer> toCrawl = new LinkedList<Integer>();
-						int[] ids = this.queue.dequeue(JOB_MAX);
+						int[] ids = this.queue.dequeue((int)credit);
 						for (int twitterId : ids) {
-							if (!this.processed(twitterId)) {
+							if (this.setState(twitterId, CrawlState.NONE, CrawlState.PENDING)) {
 								toCrawl.add(twitterId);
-								this.pending.add(twitterId);
 							}
 						}	
 						current.pushId(toCrawl);
@@ -167,7 +561,37 @@ public class Controller {
 		}
 	}
 	
-	// Handle any failed workers by getting all pending ids, removing from pending hash and adding back into queue
+	// Size a batch to what the worker gets through in BATCH_SECONDS, and at least enough to fill its concurrency
+	private int batchSize(WorkerRemote worker) {
+		double batch = Math.max(worker.getConcurrency(), worker.throughput() * BATCH_SECONDS);
+		return (int)Math.max(1, Math.min(JOB_MAX, batch));
+	}
+	
+	// When the queue runs dry and some worker could take more, take back ids a worker holds beyond
+	// two batches at its current throughput - those would otherwise sit unprocessed while others starve
+	private void reclaimStragglers() {
+		boolean starving = false;
+		for (WorkerRemote current : this.workers) {
+			if (current.isRunning() && current.credit() > 0 && current.pendingCount() < this.batchSize(current)) {
+				starving = true;
+			}
+		}
+		
+		if (starving) {
+			for (WorkerRemote current : this.workers) {
+				int[] ids = current.reclaim(2 * this.batchSize(current));
+				if (ids.length > 0) {
+					for (int twitterId : ids) {
+						this.setState(twitterId, CrawlState.PENDING, CrawlState.NONE);
+					}
+					this.queue.requeue(ids);
+					this.statusLog.logStatus("Reclaimed " + ids.length + " ids from " + current.getName() + " with account " + current.getUsername());
+				}
+			}
+		}
+	}
+	
+	// Handle any failed workers by getting all pending ids, clearing their pending state and adding back into queue
 	private void handleFailures() {
 		synchronized(this.workers) {
 			Iterator<WorkerRemote> iter = this.workers.iterator();
@@ -176,17 +600,196 @@ public class Controller {
 				if (!current.isRunning()) {
 					this.statusLog.logStatus(current.getName() + " with account " + current.getUsername() + " dropped out, rolling back");
 					LinkedList<Integer> pending = current.pendingIds();
-					this.pending.removeAll(pending);
-					this.queue.enqueue(pending);
+					for (int twitterId : pending) { this.setState(twitterId, CrawlState.PENDING, CrawlState.NONE); }
+					this.queue.requeue(pending);
 					iter.remove();
 				}
 			}
 		}
 	}
 		
-	// Have we already processed this id?
+	// Move an id from one state to another and journal the change, unless an ingest thread completed it first
+	private boolean setState(int twitterId, int expected, int state) {
+		if (!this.state.compareAndSet(twitterId, expected, state)) {
+			return false;
+		}
+		this.journal.recordState(twitterId, state);
+		return true;
+	}
+	
+	// Commit the journal every COMMIT_INTERVAL and take a full checkpoint every CHECKPOINT_INTERVAL
+	// Logs are flushed first, so a committed result is always in the logs as well, and ingestion waits meanwhile
+	private void persist() {
+		long now = System.currentTimeMillis();
+		if (now - this.lastCheckpoint >= CHECKPOINT_INTERVAL) {
+			this.checkpoint();
+		} else if (now - this.lastCommit >= COMMIT_INTERVAL && (this.journal.isDirty() || this.acknowledgementsDue())) {
+			this.ingestLock.writeLock().lock();
+			try {
+				this.appendDiscovered();
+				this.closeBatches();
+				this.successLog.flush();
+				this.failLog.flush();
+				this.journal.commit(this.position());
+				this.committed();
+				this.lastCommit = now;
+			} finally {
+				this.ingestLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	// Write the queue position, log counters, state store and batches peers have not acknowledged to a new checkpoint
+	// and start a fresh journal
+	private void checkpoint() {
+		this.ingestLock.writeLock().lock();
+		try {
+			this.appendDiscovered();
+			if (this.journal != null) {
+				this.closeBatches();
+			}
+			this.successLog.flush();
+			this.failLog.flush();
+			this.queue.force();
+			this.generation++;
+			
+			// Write to a temporary file and move it into place, so there is always one whole checkpoint
+			File temp = new File(this.checkpointName() + ".tmp");
+			FileOutputStream file = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			byte[] position = this.position();
+			out.writeLong(this.generation);
+			out.writeInt(position.length);
+			out.write(position);
+			this.state.save(out);
+			this.queue.save(out);
+			if (this.peers != null) {
+				for (PeerLink peer : this.peers) {
+					if (peer != null) {
+						ArrayList<ForwardMessage> pending = peer.pending();
+						out.writeInt(pending.size());
+						for (ForwardMessage batch : pending) {
+							Journal.writeForward(out, batch);
+						}
+					}
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+			out.close();
+			Files.move(temp.toPath(), Paths.get(this.checkpointName()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			// Changes up to here are in the checkpoint, so the journal and consumed queue segments can go
+			if (this.journal != null) {
+				this.journal.close();
+			}
+			this.journal = new Journal(this.baseName + "_journal", this.generation);
+			this.queue.releaseConsumed();
+			this.committed();
+			this.lastCheckpoint = this.lastCommit = System.currentTimeMillis();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			this.ingestLock.writeLock().unlock();
+		}
+	}
+	
+	// Load the checkpoint, replay the journal over it and return in-flight ids to the queue
+	private void resume() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.checkpointName())));
+		this.generation = in.readLong();
+		byte[] position = new byte[in.readInt()];
+		in.readFully(position);
+		this.state.load(in);
+		this.queue.load(in);
+		if (this.peers != null) {
+			for (PeerLink peer : this.peers) {
+				if (peer != null) {
+					for (int i = in.readInt(); i > 0; i--) {
+						peer.restore(Journal.readForward(in));
+					}
+				}
+			}
+		}
+		in.close();
+		
+		byte[] committed = Journal.replay(this.baseName + "_journal", this.generation, this.state, this.peers);
+		if (committed != null) {
+			position = committed;
+		}
+		this.restorePosition(position);
+		
+		int[] inFlight = this.state.list(CrawlState.PENDING);
+		for (int twitterId : inFlight) { this.state.set(twitterId, CrawlState.NONE); }
+		this.queue.requeue(inFlight);
+		this.statusLog.logStatus("Resumed at " + this.crawlCount.get() + " crawled, " + this.queue.size() + " in queue, " + inFlight.length + " returned from pending");
+		this.checkpoint();
+	}
+	
+	// Queue position, log counters, crawl count and in partitioned mode the forward sequence numbers - what a journal
+	// commit or checkpoint needs besides the state store
+	private byte[] position() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			this.queue.writePosition(out);
+			out.writeInt(this.successLog.segmentCount());
+			out.writeLong(this.successLog.loggedCount());
+			out.writeLong(this.successLog.flushedOffset());
+			out.writeInt(this.failLog.segmentCount());
+			out.writeLong(this.failLog.loggedCount());
+			out.writeLong(this.failLog.flushedOffset());
+			out.writeLong(this.crawlCount.get());
+			if (this.peers != null) {
+				for (int i = 0; i < this.peers.length; i++) {
+					if (this.peers[i] != null) {
+						this.peers[i].writePosition(out);
+					}
+					out.writeLong(this.applied[i]);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private void restorePosition(byte[] position) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(position));
+		this.queue.readPosition(in);
+		this.successLog = new SegmentedLogger(this.baseName + "_s", in.readInt(), in.readLong(), in.readLong());
+		this.failLog = new SegmentedLogger(this.baseName + "_f", in.readInt(), in.readLong(), in.readLong());
+		this.crawlCount.set(in.readLong());
+		if (this.peers != null) {
+			for (int i = 0; i < this.peers.length; i++) {
+				if (this.peers[i] != null) {
+					this.peers[i].readPosition(in);
+				}
+				this.applied[i] = this.acknowledged[i] = in.readLong();
+			}
+		}
+	}
+	
+	private String checkpointName() { return this.baseName + "_checkpoint"; }
+	
+	// Sort ids and move the unique ones to the front, returning how many there are
+	private static int sortUnique(int[] ids) {
+		Arrays.sort(ids);
+		int unique = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (unique == 0 || ids[i] != ids[unique - 1]) {
+				ids[unique++] = ids[i];
+			}
+		}
+		return unique;
+	}
+	
+	// Have we already processed this id? Crawled, pending and failed in a single lookup
 	private boolean processed(int twitterId) {
-		return (this.crawled.contains(twitterId) || this.pending.contains(twitterId) || this.failed.contains(twitterId));
+		return this.state.seen(twitterId);
 	}
 	
 	// Add a worker to the workers queue
@@ -197,18 +800,7 @@ public class Controller {
 			this.workers.add(worker);
 		}
 		this.statusLog.logStatus("Added worker " + worker.getName() + " using account " + worker.getUsername());
-	}
-	
-	// Validate a message
-	public boolean validate(Message m) {
-		synchronized(this.usedPads) {
-			if (this.usedPads.contains(m.getPad()) || !m.valid(Secret.SECRET)) {
-				return false;
-			} else {
-				this.usedPads.add(m.getPad());
-				return true;
-			}
-		}
+		this.signal();
 	}
 	
 	// Testing program
@@ -221,10 +813,27 @@ public class Controller {
 		if (args.length == 3) {
 			Controller c = new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2]);
 			c.start();
+		} else if (args.length == 5) {
+			Controller c = new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]), args[4].split(","));
+			c.start();
 		} else {
 			System.out.println("Don't forget to use -XmsM and -XmxM options, where M is like 256m, 1g, etc.");
-			System.out.println("Usage: port seed log");
+			System.out.println("Usage: port seed log [partition host:port,host:port,...]");
 			System.out.println("For a good seed, try 12854372 or 813286");
+			System.out.println("Partitioned, every controller gets the same seed and list of all controllers, and its own partition and log");
 		}
 	}
 }
+
+// Followers of one result, sorted and unique - the first count of ids, found under an account with degree followers
+class Discovered {
+	int[] ids;
+	int count;
+	int degree;
+
+	Discovered(int[] ids, int count, int degree) {
+		this.ids = ids;
+		this.count = count;
+		this.degree = degree;
+	}
+}
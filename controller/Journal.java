@@ -0,0 +1,183 @@
+package controller;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import message.*;
+
+// Append-only journal of crawl state changes since the last checkpoint
+// Each commit record carries the controller position at that point, and replay only applies
+// state changes up to the last complete commit, so a torn tail is ignored
+// The header holds the checkpoint generation, so a journal left over from an older checkpoint is never replayed
+// Ingest threads and the main controller thread record changes concurrently, so two changes to one id may be
+// written in either order - a final state is final though, so replay never moves an id out of CRAWLED or FAILED
+// In partitioned mode every batch closed for a peer is journaled too, and replay hands committed ones back to the link
+public class Journal {
+	private static final byte STATE = 1;
+	private static final byte COMMIT = 2;
+	private static final byte FORWARD = 3;
+
+	private String fileName;
+	private DataOutputStream output;
+	private boolean dirty = false;
+
+	// Start an empty journal for a checkpoint generation
+	public Journal(String fileName, long generation) {
+		this.fileName = fileName;
+		try {
+			this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.fileName, false)));
+			this.output.writeLong(generation);
+			this.output.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Buffer a state change - it only counts once committed
+	public synchronized void recordState(int twitterId, int state) {
+		try {
+			this.output.writeByte(STATE);
+			this.output.writeInt(twitterId);
+			this.output.writeByte(state);
+			this.dirty = true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Buffer a batch closed for the peer owning partition peer - it only counts once committed
+	public synchronized void recordForward(int peer, ForwardMessage batch) {
+		try {
+			this.output.writeByte(FORWARD);
+			this.output.writeInt(peer);
+			writeForward(this.output, batch);
+			this.dirty = true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Write a commit record holding the position and push everything to the file
+	public synchronized void commit(byte[] position) {
+		try {
+			this.output.writeByte(COMMIT);
+			this.output.writeInt(position.length);
+			this.output.write(position);
+			this.output.flush();
+			this.dirty = false;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	public synchronized boolean isDirty() { return this.dirty; }
+
+	public synchronized void close() {
+		try {
+			this.output.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Apply committed state changes to the store and restore committed batches to the peer links, returning the last
+	// committed position or null
+	public static byte[] replay(String fileName, long generation, CrawlState state, PeerLink[] peers) throws IOException {
+		File file = new File(fileName);
+		if (!file.exists()) {
+			return null;
+		}
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		byte[] position = null;
+		int[] ids = new int[1024];
+		byte[] states = new byte[1024];
+		int uncommitted = 0;
+		ArrayList<Integer> forwardPeers = new ArrayList<Integer>();
+		ArrayList<ForwardMessage> forwards = new ArrayList<ForwardMessage>();
+		try {
+			if (input.readLong() != generation) {
+				return null;
+			}
+			while (true) {
+				byte type = input.readByte();
+				if (type == STATE) {
+					if (uncommitted == ids.length) {
+						ids = java.util.Arrays.copyOf(ids, ids.length * 2);
+						states = java.util.Arrays.copyOf(states, states.length * 2);
+					}
+					ids[uncommitted] = input.readInt();
+					states[uncommitted] = input.readByte();
+					uncommitted++;
+				} else if (type == FORWARD) {
+					forwardPeers.add(input.readInt());
+					forwards.add(readForward(input));
+				} else if (type == COMMIT) {
+					byte[] next = new byte[input.readInt()];
+					input.readFully(next);
+					for (int i = 0; i < uncommitted; i++) {
+						if (!CrawlState.isFinal(state.get(ids[i]))) {
+							state.set(ids[i], states[i]);
+						}
+					}
+					uncommitted = 0;
+					for (int i = 0; i < forwards.size(); i++) {
+						peers[forwardPeers.get(i)].restore(forwards.get(i));
+					}
+					forwardPeers.clear();
+					forwards.clear();
+					position = next;
+				} else {
+					break;
+				}
+			}
+		}
+		catch (EOFException e) {
+			// Torn tail after the last commit
+		}
+		finally {
+			input.close();
+		}
+		return position;
+	}
+
+	// A forward batch as the journal and checkpoint hold it
+	static void writeForward(DataOutputStream out, ForwardMessage batch) throws IOException {
+		out.writeInt(batch.getPartition());
+		out.writeLong(batch.getSequence());
+		out.writeInt(batch.getDegrees().length);
+		for (int i = 0; i < batch.getDegrees().length; i++) {
+			out.writeInt(batch.getDegrees()[i]);
+			out.writeInt(batch.getIds()[i].length);
+			for (int twitterId : batch.getIds()[i]) {
+				out.writeInt(twitterId);
+			}
+		}
+	}
+
+	static ForwardMessage readForward(DataInputStream in) throws IOException {
+		int partition = in.readInt();
+		long sequence = in.readLong();
+		int[] degrees = new int[in.readInt()];
+		int[][] ids = new int[degrees.length][];
+		for (int i = 0; i < degrees.length; i++) {
+			degrees[i] = in.readInt();
+			ids[i] = new int[in.readInt()];
+			for (int j = 0; j < ids[i].length; j++) {
+				ids[i][j] = in.readInt();
+			}
+		}
+		return new ForwardMessage(partition, sequence, degrees, ids);
+	}
+}
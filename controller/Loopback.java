@@ -0,0 +1,136 @@
+package controller;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import worker.*;
+
+// Testing program - scaling and completeness check for the partitioned mode on one machine
+// Starts the stub API over 2 * idRange ids, then N controller processes, partitioned when N > 1, each with one worker
+// process of accountsPerWorker accounts, all on loopback. Once the controllers finish, or the given time passes,
+// everything is stopped and the results in every controller's logs are counted. No id may be logged twice, and
+// every id discovered - the seed and every follower logged - must have a result in some partition's logs, which
+// needs the crawl to have finished
+// Usage: Loopback controllers seconds [accountsPerWorker] [idRange]
+public class Loopback {
+	private static final int STUB_PORT = 4700;
+	private static final int CONTROLLER_PORT = 4601;
+	private static final int SEED = 1;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: controllers seconds [accountsPerWorker] [idRange]");
+			return;
+		}
+		int controllers = Integer.parseInt(args[0]);
+		int seconds = Integer.parseInt(args[1]);
+		int accounts = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+		int idRange = (args.length > 3) ? Integer.parseInt(args[3]) : 500;
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "loopback_" + System.currentTimeMillis());
+		dir.mkdirs();
+		PrintWriter accountsFile = new PrintWriter(new File(dir, "accounts.txt"));
+		for (int i = 1; i <= accounts; i++) {
+			accountsFile.println("account" + i + " password");
+		}
+		accountsFile.close();
+
+		StringBuilder peers = new StringBuilder();
+		for (int i = 0; i < controllers; i++) {
+			peers.append((i > 0) ? "," : "").append("localhost:").append(CONTROLLER_PORT + i);
+		}
+
+		StubTwitterApi.start(STUB_PORT, 0, idRange);
+		ArrayList<Process> controllerProcesses = new ArrayList<Process>();
+		ArrayList<Process> workerProcesses = new ArrayList<Process>();
+		for (int i = 0; i < controllers; i++) {
+			File log = new File(dir, "c" + i + File.separator + "log");
+			log.mkdirs();
+			ArrayList<String> command = command("-Xmx256m", Controller.class.getName(),
+				"" + (CONTROLLER_PORT + i), "" + SEED, log.getPath() + File.separator);
+			if (controllers > 1) {
+				command.add("" + i);
+				command.add(peers.toString());
+			}
+			controllerProcesses.add(start(command, new File(dir, "c" + i + ".out")));
+		}
+		Thread.sleep(1000);
+		for (int i = 0; i < controllers; i++) {
+			ArrayList<String> command = command("-Xmx256m", "-Dtwitter.api=http://localhost:" + STUB_PORT,
+				Worker.class.getName(), "localhost", "" + (CONTROLLER_PORT + i), (new File(dir, "accounts.txt")).getPath());
+			workerProcesses.add(start(command, new File(dir, "w" + i + ".out")));
+		}
+
+		// Controllers exit once the crawl is over - workers never do
+		long begin = System.currentTimeMillis();
+		boolean finished = true;
+		for (Process process : controllerProcesses) {
+			long left = begin + seconds * 1000L - System.currentTimeMillis();
+			if (!process.waitFor(Math.max(0, left), java.util.concurrent.TimeUnit.MILLISECONDS)) {
+				finished = false;
+			}
+		}
+		double elapsed = (System.currentTimeMillis() - begin) / 1000.0;
+		for (Process process : workerProcesses) {
+			process.destroyForcibly().waitFor();
+		}
+		Thread.sleep(2000);
+		for (Process process : controllerProcesses) {
+			process.destroyForcibly().waitFor();
+		}
+
+		// Count results across every log, and collect every id discovered - partial chunks are part of the result
+		// that follows, and a failure is logged to the success log as well, where it is not counted again
+		HashSet<Integer> unique = new HashSet<Integer>();
+		HashSet<Integer> discovered = new HashSet<Integer>();
+		discovered.add(SEED);
+		long results = 0;
+		for (int i = 0; i < controllers; i++) {
+			for (String log : new String[] { "_s", "_f" }) {
+				for (String fileName : SegmentReader.segments(new File(dir, "c" + i + File.separator + "log" + File.separator + log).getPath())) {
+					SegmentReader reader = SegmentReader.open(fileName);
+					CrawlResult result;
+					while ((result = reader.next()) != null) {
+						for (int followerId : result.getFollowers()) {
+							discovered.add(followerId);
+						}
+						if (result.isSuccessful() || log.equals("_f")) {
+							results++;
+							unique.add(result.getTwitterId());
+						}
+					}
+					reader.close();
+				}
+			}
+		}
+		discovered.removeAll(unique);
+		System.out.println(controllers + " controllers, " + (finished ? "finished in " : "stopped after ") + String.format("%.1f", elapsed)
+			+ " s: " + results + " results, " + unique.size() + " unique, " + String.format("%.1f", results / elapsed) + " ids/s, "
+			+ discovered.size() + " discovered ids without a result");
+		if (results != unique.size()) {
+			System.out.println("FAILED - an id was crawled twice");
+		} else if (!finished) {
+			System.out.println("FAILED - the crawl did not finish, so not every id could be crawled");
+		} else if (discovered.size() > 0) {
+			System.out.println("FAILED - discovered ids were lost, " + discovered.iterator().next() + " among them");
+		} else {
+			System.out.println("OK");
+		}
+		System.exit(0);
+	}
+
+	// Java command line with this class path
+	private static ArrayList<String> command(String... args) {
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.addAll(Arrays.asList(args));
+		return command;
+	}
+
+	private static Process start(ArrayList<String> command, File output) throws IOException {
+		return (new ProcessBuilder(command)).redirectErrorStream(true).redirectOutput(output).start();
+	}
+}
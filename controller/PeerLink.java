@@ -0,0 +1,294 @@
+package controller;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.*;
+import message.*;
+
+// Outgoing link to the controller that owns another partition of the id space
+// The main controller thread adds ids to the open batch and closes batches, numbered in sequence, into the journal -
+// a batch is only released to the sender thread once the commit covering it is written, so a restart never takes
+// back a batch the peer may have seen, nor reuses its number
+// The sender writes released batches in order over a blocking socket and keeps each until the peer acknowledges it,
+// which the peer does once a commit of its own covers the ids. Every connection opens with a probe, which the peer
+// answers with its status, so after a reconnect the sender resends from the first batch not acknowledged - the peer
+// drops any it already has. Batches not acknowledged are saved with the checkpoint, so they survive a restart too
+// A reader thread per connection takes the peer's statuses, and the last one is kept for termination detection
+// A connection left idle for half of Timeout.TIMEOUT is replaced before the next write, since the peer drops it at
+// TIMEOUT and a write to a dropped connection can seem to succeed
+public class PeerLink implements Runnable {
+	private static final int RETRY_MILLIS = 1000;
+
+	private int partition;	// Of the controller the link is from
+	private String host;
+	private int port;
+	private volatile boolean running = true;
+	private volatile long stopTime = 0;
+	private CountDownLatch stopped = new CountDownLatch(1);
+
+	// Open batch, and batches closed since the last commit - only touched by the main controller thread
+	private ArrayList<int[]> groups = new ArrayList<int[]>();
+	private ArrayList<Integer> degrees = new ArrayList<Integer>();
+	private int[] group = new int[1024];
+	private int groupSize = 0;
+	private int groupDegree = -1;
+	private int batchSize = 0;
+	private long nextSequence = 1;
+	private LinkedList<ForwardMessage> closed = new LinkedList<ForwardMessage>();
+
+	// Released batches not yet acknowledged, in sequence order, the last one written on the current connection,
+	// and the probe the connection should carry - guarded by the link's lock
+	private LinkedList<ForwardMessage> unacknowledged = new LinkedList<ForwardMessage>();
+	private long acknowledged = 0;
+	private long written = 0;
+	private long round = 0;
+	private boolean finish = false;
+	private long probeWritten = 0;
+	private boolean finishWritten = false;
+
+	// Last status the peer sent
+	private volatile PeerStatusMessage status = null;
+
+	// Address as host:port
+	public PeerLink(int partition, String address) {
+		this.partition = partition;
+		int colon = address.lastIndexOf(':');
+		this.host = address.substring(0, colon);
+		this.port = Integer.parseInt(address.substring(colon + 1));
+	}
+
+	public String getAddress() { return this.host + ":" + this.port; }
+	public int batchSize() { return this.batchSize; }
+	public PeerStatusMessage status() { return this.status; }
+
+	// Add an id found under an account with degree followers
+	public void add(int twitterId, int degree) {
+		if (degree != this.groupDegree) {
+			this.closeGroup();
+			this.groupDegree = degree;
+		}
+		if (this.groupSize == this.group.length) {
+			this.group = Arrays.copyOf(this.group, this.groupSize * 2);
+		}
+		this.group[this.groupSize++] = twitterId;
+		this.batchSize++;
+	}
+
+	// Close the open batch, returning it for the journal, or null if it is empty - it is sent after the next commit
+	public ForwardMessage close() {
+		this.closeGroup();
+		if (this.groups.size() == 0) {
+			return null;
+		}
+		int[] batchDegrees = new int[this.degrees.size()];
+		for (int i = 0; i < batchDegrees.length; i++) {
+			batchDegrees[i] = this.degrees.get(i);
+		}
+		ForwardMessage batch = new ForwardMessage(this.partition, this.nextSequence++, batchDegrees, this.groups.toArray(new int[0][]));
+		this.closed.add(batch);
+		this.groups.clear();
+		this.degrees.clear();
+		this.batchSize = 0;
+		return batch;
+	}
+
+	private void closeGroup() {
+		if (this.groupSize > 0) {
+			this.groups.add(Arrays.copyOf(this.group, this.groupSize));
+			this.degrees.add(this.groupDegree);
+			this.groupSize = 0;
+		}
+	}
+
+	// Hand the closed batches to the sender - once the commit that journaled them is written
+	public synchronized void release() {
+		this.unacknowledged.addAll(this.closed);
+		this.closed.clear();
+		this.notifyAll();
+	}
+
+	// A committed batch found on resume, in the checkpoint or the journal - readPosition() drops any the peer had
+	public synchronized void restore(ForwardMessage batch) {
+		this.unacknowledged.add(batch);
+	}
+
+	// Every batch the peer has not acknowledged, closed ones included, for the checkpoint
+	public synchronized ArrayList<ForwardMessage> pending() {
+		ArrayList<ForwardMessage> pending = new ArrayList<ForwardMessage>(this.unacknowledged);
+		pending.addAll(this.closed);
+		return pending;
+	}
+
+	// Nothing open, closed or waiting for the peer
+	public synchronized boolean isSettled() {
+		return (this.batchSize == 0 && this.closed.size() == 0 && this.unacknowledged.size() == 0);
+	}
+
+	// Ask the peer for its status for a round of termination detection, or tell it the crawl is over
+	public synchronized void probe(long round, boolean finish) {
+		this.round = round;
+		this.finish = finish;
+		this.notifyAll();
+	}
+
+	// Sequence numbering and what the peer has acknowledged, for a journal commit or checkpoint
+	public synchronized void writePosition(DataOutputStream out) throws IOException {
+		out.writeLong(this.nextSequence);
+		out.writeLong(this.acknowledged);
+	}
+
+	public synchronized void readPosition(DataInputStream in) throws IOException {
+		this.nextSequence = in.readLong();
+		this.acknowledged = in.readLong();
+		this.dropAcknowledged();
+	}
+
+	private void dropAcknowledged() {
+		while (this.unacknowledged.size() > 0 && this.unacknowledged.getFirst().getSequence() <= this.acknowledged) {
+			this.unacknowledged.removeFirst();
+		}
+	}
+
+	// Write what is left, giving up after Timeout.TIMEOUT if the peer cannot be reached, and stop the sender
+	public void stop() {
+		this.stopTime = System.currentTimeMillis();
+		this.running = false;
+		synchronized (this) {
+			this.notifyAll();
+		}
+		try {
+			this.stopped.await();
+		} catch (InterruptedException e) {}
+	}
+
+	// Next message for the current connection - the probe if it has not carried the latest, then the first batch
+	// not yet written, or null
+	private synchronized Message next() {
+		if (this.probeWritten != this.round || this.finishWritten != this.finish) {
+			return new ProbeMessage(this.partition, this.round, this.finish);
+		}
+		for (ForwardMessage batch : this.unacknowledged) {
+			if (batch.getSequence() > this.written) {
+				return batch;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void wrote(Message m) {
+		if (m instanceof ProbeMessage) {
+			this.probeWritten = ((ProbeMessage)m).getRound();
+			this.finishWritten = ((ProbeMessage)m).isFinish();
+		} else {
+			this.written = ((ForwardMessage)m).getSequence();
+		}
+	}
+
+	// A fresh connection starts with the probe, then resends everything not acknowledged
+	private synchronized void connected() {
+		this.written = this.acknowledged;
+		this.probeWritten = -1;
+	}
+
+	private synchronized void receive(PeerStatusMessage m) {
+		this.acknowledged = Math.max(this.acknowledged, m.getAcknowledged());
+		this.dropAcknowledged();
+		this.status = m;
+		this.notifyAll();
+	}
+
+	// Send our nonce, and derive the session key from it and the one the peer answers with
+	private Session handshake(Socket socket) throws IOException {
+		byte[] nonce = Session.nonce();
+		Session handshake = Session.handshake(Secret.SECRET);
+		MessageCodec.write(socket.getOutputStream(), new HelloMessage(nonce), handshake);
+		Message m = MessageCodec.read(new DataInputStream(socket.getInputStream()), handshake);
+		if (!(m instanceof AcknowledgementMessage)) {
+			throw new IOException("Not an acknowledgement from " + this.getAddress());
+		}
+		return Session.derive(Secret.SECRET, nonce, ((AcknowledgementMessage)m).getNonce(), true);
+	}
+
+	// Sender thread
+	public void run() {
+		Socket socket = null;
+		Session session = null;
+		long lastWrite = 0;
+		while (true) {
+			Message message;
+			synchronized (this) {
+				message = this.next();
+				if (message == null) {
+					if (!this.running) {
+						break;
+					}
+					try {
+						this.wait(RETRY_MILLIS);
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+			}
+			try {
+				if (socket != null && (socket.isClosed() || System.currentTimeMillis() - lastWrite > Timeout.TIMEOUT / 2)) {
+					socket.close();
+					socket = null;
+				}
+				if (socket == null) {
+					socket = new Socket(this.host, this.port);
+					socket.setTcpNoDelay(true);
+					socket.setSoTimeout(Timeout.TIMEOUT);
+					session = this.handshake(socket);
+					socket.setSoTimeout(0);	// The reader waits as long as the connection lasts
+					this.connected();
+					this.startReader(socket, session);
+					lastWrite = System.currentTimeMillis();
+					continue;
+				}
+				MessageCodec.write(socket.getOutputStream(), message, session);
+				lastWrite = System.currentTimeMillis();
+				this.wrote(message);
+			} catch (IOException e) {
+				// Peer not up yet, or gone - retry on a new connection
+				if (socket != null) {
+					try { socket.close(); } catch (IOException closeError) {}
+					socket = null;
+				}
+				if (!this.running && System.currentTimeMillis() - this.stopTime > Timeout.TIMEOUT) {
+					break;
+				}
+				try { Thread.sleep(RETRY_MILLIS); } catch (InterruptedException interrupted) { break; }
+			}
+		}
+		if (socket != null) {
+			try { socket.close(); } catch (IOException e) {}
+		}
+		this.stopped.countDown();
+	}
+
+	// Read the peer's statuses until the connection closes - the sender notices and reconnects before its next write
+	private void startReader(final Socket socket, final Session session) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Message m = MessageCodec.read(in, session);
+						if (!(m instanceof PeerStatusMessage)) {
+							throw new IOException("Unexpected message from " + getAddress());
+						}
+						receive((PeerStatusMessage)m);
+					}
+				} catch (IOException e) {
+					try { socket.close(); } catch (IOException closeError) {}
+				}
+			}
+		}, "peer-" + this.getAddress());
+		reader.setDaemon(true);
+		reader.start();
+	}
+}
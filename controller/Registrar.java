@@ -2,69 +2,112 @@ package controller;
 
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import common.*;
 import message.*;
 
+// Selector loop that accepts workers and serves every worker connection without blocking
+// The first frame on a connection must be a hello, answered with an acknowledgement that opens the connection's session
+// The next must be a register message, after which the connection belongs to a WorkerRemote, or a probe, after which
+// it is a peer controller's link and only carries forwards and probes
+// A connection silent for Timeout.TIMEOUT is dropped unless it is a registered worker owing nothing - peer links
+// reconnect before they would be timed out
 public class Registrar implements Runnable {
 	private Controller controller;
-	private ServerSocket serverSocket;
-	private ExecutorService threadPool;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private LinkedList<Connection> connections = new LinkedList<Connection>();	// Only accessed by the loop thread
+	private ConcurrentLinkedQueue<Connection> writeRequests = new ConcurrentLinkedQueue<Connection>();
+	private int SELECT_TIMEOUT = 1000;
 
-	public Registrar(Controller controller, ServerSocket serverSocket) {
+	public Registrar(Controller controller, ServerSocketChannel serverChannel) throws IOException {
 		this.controller = controller;
-		this.serverSocket = serverSocket;
-		this.threadPool = Executors.newSingleThreadExecutor();
+		this.serverChannel = serverChannel;
+		this.serverChannel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
 	}
-	
+
+	// Serve until the controller shuts its thread pool down
 	public void run() {
-		while (true) {
+		while (!Thread.currentThread().isInterrupted()) {
 			try {
-				this.threadPool.execute(new Registration(this.controller, this.serverSocket.accept()));
+				this.selector.select(SELECT_TIMEOUT);
+
+				// Frames queued by other threads since the last select
+				Connection requested;
+				while ((requested = this.writeRequests.poll()) != null) {
+					requested.flush();
+				}
+
+				Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						this.accept();
+					} else {
+						Connection connection = (Connection)key.attachment();
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					}
+				}
+
+				this.closeIdle();
 			} catch (IOException e) {
 				e.printStackTrace();
 				System.exit(-1);
 			}
 		}
+		for (Connection connection : this.connections) {
+			connection.close();
+		}
+		try {
+			this.selector.close();
+			this.serverChannel.close();
+		} catch (IOException e) {}
 	}
-}
 
-class Registration implements Runnable {
-	private Controller controller;
-	private Socket socket;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
-	
-	public Registration(Controller controller, Socket socket) throws IOException {
-		this.controller = controller;
-		this.socket = socket;
-		this.socket.setSoTimeout(Timeout.TIMEOUT);
+	// Ask the loop thread to write a connection's queued frames
+	void requestWrite(Connection connection) {
+		this.writeRequests.add(connection);
+		this.selector.wakeup();
 	}
-	
-	public void run() {
-		try {			
-			this.out = new ObjectOutputStream(this.socket.getOutputStream());
-			this.in = new ObjectInputStream(this.socket.getInputStream());
-			
-			Object o = this.in.readObject();
-			if (!(o instanceof RegisterMessage)) {
-				throw new RuntimeException("Not a register message");
-			} else if (!this.controller.validate((RegisterMessage)o)) {
-				throw new RuntimeException("Not a valid message");
-			} else {
-				this.out.writeObject(new AcknowledgementMessage(Secret.SECRET));
-				this.out.flush();
-				
-				RegisterMessage m = (RegisterMessage)o;
-				WorkerRemote worker = new WorkerRemote(m.getName(), m.getUsername(), this.controller, this.in, this.out);
-				this.controller.addWorker(worker);
-			} 
-		} catch (Exception e) {
-			System.out.println(e);
-			try {
-				this.socket.close();
-			} catch (IOException e1) {}
+
+	private void accept() throws IOException {
+		SocketChannel channel = this.serverChannel.accept();
+		if (channel != null) {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(this.controller, this, channel);
+			connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+			this.connections.add(connection);
+		}
+	}
+
+	// Drop connections that have been silent for too long while owing us results, or that are not a worker's
+	private void closeIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Connection> iter = this.connections.iterator();
+		while (iter.hasNext()) {
+			Connection connection = iter.next();
+			if (!connection.isOpen()) {
+				iter.remove();
+			} else if ((connection.isAwaiting() || !connection.isWorker()) && now - connection.lastActive > Timeout.TIMEOUT) {
+				connection.close();
+				iter.remove();
+			}
 		}
 	}
 }
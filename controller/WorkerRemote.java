@@ -4,196 +4,179 @@ import java.io.*;
 import java.util.*;
 import common.*;
 import message.*;
-import java.util.concurrent.*;
 
+// Controller side of a worker - jobs are sent as soon as they are pushed,
+// and results are ingested by the controller's ingest threads as they arrive, in order per connection
+// The worker advertises a window, the total number of ids it will accept so far,
+// and the controller may send up to the window ahead of the results coming back
+// Throughput is estimated from results as they arrive, so batches can be sized to the worker
 public class WorkerRemote {
+	private long RATE_INTERVAL = 10000;
+	private double RATE_WEIGHT = 0.3;
+
 	private String name;
 	private String username;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private Connection connection;
 	private Controller controller;
-	private ExecutorService threadPool = Executors.newFixedThreadPool(1); // Socket thread
-	
+
 	private volatile boolean running = false;
-	private volatile boolean sending = true;
 	
-	// Out queue, in queue and pending hash set
-	private LinkedList<Integer> outQueue = new LinkedList<Integer>();
-	private LinkedList<CrawlResult> inQueue = new LinkedList<CrawlResult>();
-	private HashSet<Integer> pending = new HashSet<Integer>();
+	// Credit - advertised window against ids sent
+	private volatile long window;
+	private long sent = 0;
 	
-	public WorkerRemote(String name, String username, Controller controller, ObjectInputStream in, ObjectOutputStream out) {
+	// Throughput estimate in ids per second, and the sample being measured
+	private int concurrency;
+	private volatile double rate;
+	private long rateStart = 0;
+	private int rateCount = 0;
+
+	// Pending ids, in the order they were sent
+	private LinkedHashSet<Integer> pending = new LinkedHashSet<Integer>();
+
+	WorkerRemote(String name, String username, long window, int concurrency, int requestsPerHour, Controller controller, Connection connection) {
 		this.name = name;
 		this.username = username;
-		this.in = in;
-		this.out = out;
+		this.window = window;
+		this.concurrency = concurrency;
+		this.rate = requestsPerHour / 3600.0;	// Until measured, assume one request per id
+		this.connection = connection;
 		this.controller = controller;
 	}
-	
+
 	public String getName() { return this.name; }
 	public String getUsername() { return this.username; }
 	public boolean isRunning() { return this.running; }
-	public boolean isSending() { return this.sending; }
 	
-	// Push outQueue 
+	// How many more ids the worker will take right now
+	public long credit() { return this.window - this.sent; }
+	
+	// Advertised concurrency and measured ids per second
+	public int getConcurrency() { return this.concurrency; }
+	public double throughput() { return this.rate; }
+
+	// Mark ids pending and send them
 	public void pushId(int[] ids) {
-		synchronized(this.outQueue) {
-			for (int id : ids) { 
-				this.outQueue.add(id); 
+		synchronized(this.pending) {
+			// Idle time does not count against throughput
+			if (this.pending.size() == 0) {
+				this.rateStart = System.currentTimeMillis();
+				this.rateCount = 0;
+			}
+			for (int id : ids) {
+				this.pending.add(id);
 			}
 		}
+		this.sent += ids.length;
+		this.sendJob(ids);
 	}
-	
+
 	public void pushId(LinkedList<Integer> ids) {
-		synchronized(this.outQueue) {
-			for (int id : ids) {
-				this.outQueue.add(id); 
-			} 
-		}
+		int[] array = new int[ids.size()];
+		int i = 0;
+		for (int id : ids) { array[i++] = id; }
+		this.pushId(array);
 	}
-	
+
 	public void pushId(int id) {
-		synchronized(this.outQueue) {
-			this.outQueue.add(id);
-		}
+		this.pushId(new int[] { id });
 	}
-	
-	// Pop inQueue
-	public CrawlResult popResult() {		
-		if (this.inQueue.size() > 0) {
-			synchronized(this.inQueue) {
-				return this.inQueue.removeFirst();
+
+	// Create and send the assignment message
+	private void sendJob(int[] ids) {
+		if (ids.length > 0) {
+			try {
+				this.connection.send(new AssignmentMessage(ids));
+			} catch (IOException e) {
+				this.stop();
 			}
-		} else {
-			return null;
 		}
 	}
-	
-	// Pop all inQueue
-	public LinkedList<CrawlResult> popResults() {
-		LinkedList<CrawlResult> results = new LinkedList<CrawlResult>();
-		if (this.inQueue.size() > 0) {			
-			synchronized(this.inQueue) {
-				for (CrawlResult result : this.inQueue) {
-					results.add(result);
+
+	// Remove pending and take the new window - partial chunks leave their id pending
+	// Called by an ingest thread, before the results themselves are ingested
+	void receiveResults(CrawlResultMessage m) {
+		CrawlResult[] results = m.getResults();
+		synchronized(this.pending) {
+			int completed = 0;
+			for (CrawlResult result : results) {
+				if (!result.isPartial()) {
+					this.pending.remove(result.getTwitterId());
+					completed++;
 				}
-				this.inQueue.clear();
 			}
-		} 
-		return results;
+			this.sample(completed);
+		}
+		this.window = Math.max(this.window, m.getWindow());
 	}
-	
-	// Pop outQueue, add pending, send (thread)
-	// Called by sendThread
-	public void sendJob() throws IOException {
-		if (this.sending) {
-			if (this.outQueue.size() > 0) {			
-				synchronized(this.outQueue) {			
-					// Get the id numbers from the outQueue
-					int[] ids = new int[this.outQueue.size()];
-					for (int i = 0; i < ids.length; i++) { ids[i] = this.outQueue.removeFirst(); }
-					
-					// Inner lock on pending
-					synchronized(this.pending) {
-						for (int id : ids) { this.pending.add(id); }
-					}
-					
-					this.outQueue.clear();
-					
-					// Create and send the assignment message
-					AssignmentMessage am = new AssignmentMessage(Secret.SECRET, ids);
-					this.out.writeObject(am);
-					this.out.flush();
-				}			
-				this.sending = false;
-			}		
+
+	// Fold completed results into the throughput estimate once a sample interval has passed
+	private void sample(int completed) {
+		long now = System.currentTimeMillis();
+		this.rateCount += completed;
+		if (now - this.rateStart >= RATE_INTERVAL) {
+			double measured = this.rateCount * 1000.0 / (now - this.rateStart);
+			this.rate = (1 - RATE_WEIGHT) * this.rate + RATE_WEIGHT * measured;
+			this.rateStart = now;
+			this.rateCount = 0;
 		}
 	}
 	
-	// Receive, remove pending, push inQueue
-	// Called by receiveThread
-	public void receiveResults() throws IOException, ClassNotFoundException {
-		if (!this.sending) {
-			Object o = this.in.readObject();
-			if (o instanceof CrawlResultMessage && this.controller.validate((Message)o)) {
-				CrawlResult[] results = ((CrawlResultMessage)o).getResults();
-				synchronized (this.inQueue) {
-					synchronized(this.pending) {
-						for (CrawlResult result : results) {
-							this.pending.remove(result.getTwitterId());
-							this.inQueue.add(result);
-							
-							if (this.pending.size() == 0) {
-								this.sending = true;
-							}
-						}
-					}
+	// Take back the most recently sent pending ids beyond keep - the ones the worker is least likely to have started
+	// The worker is told, and drops those it has not started, counting them in its window as if crawled - any it
+	// has started still come back, and the controller keeps whichever result is first
+	public int[] reclaim(int keep) {
+		int[] retval;
+		synchronized(this.pending) {
+			int count = Math.max(0, this.pending.size() - keep);
+			retval = new int[count];
+			if (count > 0) {
+				Integer[] ids = this.pending.toArray(new Integer[0]);
+				for (int i = 0; i < count; i++) {
+					retval[i] = ids[keep + i];
+					this.pending.remove(retval[i]);
 				}
-			} 
+			}
+		}
+		if (retval.length > 0) {
+			try {
+				this.connection.send(new RevokeMessage(Arrays.copyOf(retval, retval.length)));
+			} catch (IOException e) {
+				this.stop();
+			}
+		}
+		return retval;
+	}
+	
+	public int pendingCount() {
+		synchronized (this.pending) {
+			return this.pending.size();
 		}
 	}
-
 	
 	// None pending? - easy way to check if this worker is ready
 	public boolean nonePending() {
-		synchronized (this.outQueue) {
-			synchronized (this.pending) {
-				return (this.outQueue.size() == 0 && this.pending.size() == 0);
-			}
+		synchronized (this.pending) {
+			return (this.pending.size() == 0);
 		}
 	}
-	
+
 	// What ids are pending?
 	public LinkedList<Integer> pendingIds() {
-		synchronized (this.outQueue) {
-			LinkedList<Integer> retval = new LinkedList<Integer>(this.outQueue);	
-			synchronized(this.pending) {				
-				Iterator<Integer> iter = this.pending.iterator();
-				while (iter.hasNext()) {
-					retval.add(iter.next());
-				}
-			}
-			return retval;
+		synchronized(this.pending) {
+			return new LinkedList<Integer>(this.pending);
 		}
 	}
-	
-	// Start the thread after construction - this will only work once
+
+	// Mark running after construction
 	public void start() {
 		this.running = true;
-		this.threadPool.execute(new SocketThread(this));
 	}
-	
-	// Stop the thread after construction
+
+	// Stop and drop the connection, waking the controller to roll back what is pending
 	public void stop() {
-		try {
-			this.running = false;
-			this.in.close();
-			this.out.close();
-		} catch (IOException e) {
-			System.out.println("Shut down worker error!");
-		}
+		this.running = false;
+		this.connection.close();
+		this.controller.signal();
 	}
 }
-
-class SocketThread implements Runnable {
-	private WorkerRemote worker;
-	SocketThread(WorkerRemote worker) {
-		this.worker = worker;
-	}
-	
-	public void run() {
-		while (this.worker.isRunning()) {
-			try {
-				if (this.worker.isSending()) {
-					this.worker.sendJob();
-					Thread.sleep(10000);
-				} else {
-					this.worker.receiveResults();
-					Thread.sleep(2000);
-				}
-			} catch (Exception e) {
-				this.worker.stop();
-			}
-		}
-	}
-}
\ No newline at end of file
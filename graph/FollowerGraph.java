@@ -0,0 +1,169 @@
+package graph;
+
+import java.io.*;
+import java.util.*;
+import common.*;
+
+// The follower graph GraphBuilder writes, read straight from the mapped files - nothing is loaded onto the heap
+// Nodes are dense indexes 0..nodeCount-1 in twitterId order, edges are stored in both directions as CSR:
+//	ids - int twitterId of each node, ascending
+//	in.offsets, in.edges - long start of each node's followers, then nodeCount + 1 ends, and the follower nodes
+//	out.offsets, out.edges - the same for the nodes each node follows
+// Each row is sorted and holds no repeats
+public class FollowerGraph {
+	public static final String IDS = "ids";
+	public static final String IN_OFFSETS = "in.offsets";
+	public static final String IN_EDGES = "in.edges";
+	public static final String OUT_OFFSETS = "out.offsets";
+	public static final String OUT_EDGES = "out.edges";
+
+	private MappedFile ids;
+	private MappedFile inOffsets;
+	private MappedFile inEdges;
+	private MappedFile outOffsets;
+	private MappedFile outEdges;
+	private int nodeCount;
+
+	public FollowerGraph(String directory) throws IOException {
+		this.ids = MappedFile.open(directory + File.separator + IDS);
+		this.inOffsets = MappedFile.open(directory + File.separator + IN_OFFSETS);
+		this.inEdges = MappedFile.open(directory + File.separator + IN_EDGES);
+		this.outOffsets = MappedFile.open(directory + File.separator + OUT_OFFSETS);
+		this.outEdges = MappedFile.open(directory + File.separator + OUT_EDGES);
+		this.nodeCount = (int)(this.ids.size() / 4);
+		if (this.inOffsets.size() != 8L * (this.nodeCount + 1) || this.outOffsets.size() != 8L * (this.nodeCount + 1)) {
+			throw new IOException("Graph files in " + directory + " do not match");
+		}
+	}
+
+	public int nodeCount() { return this.nodeCount; }
+	public long edgeCount() { return this.inOffsets.getLong(this.nodeCount); }
+	public int idOf(int node) { return this.ids.getInt(node); }
+
+	// Node of a twitterId, or -1 if it is not in the graph
+	public int nodeOf(int twitterId) {
+		int low = 0;
+		int high = this.nodeCount;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.ids.getInt(middle) < twitterId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return (low < this.nodeCount && this.ids.getInt(low) == twitterId) ? low : -1;
+	}
+
+	public int followerCount(int node) {
+		return (int)(this.inOffsets.getLong(node + 1) - this.inOffsets.getLong(node));
+	}
+
+	// The i'th follower of a node, as a node
+	public int follower(int node, int i) {
+		return this.inEdges.getInt(this.inOffsets.getLong(node) + i);
+	}
+
+	public int followingCount(int node) {
+		return (int)(this.outOffsets.getLong(node + 1) - this.outOffsets.getLong(node));
+	}
+
+	// The i'th node a node follows
+	public int following(int node, int i) {
+		return this.outEdges.getInt(this.outOffsets.getLong(node) + i);
+	}
+
+	// Testing program - graph statistics and a pass over every edge, checked against the logs if given
+	// Usage: FollowerGraph directory [baseName...]
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: directory [baseName...]");
+			return;
+		}
+		FollowerGraph graph = new FollowerGraph(args[0]);
+		long begin = System.nanoTime();
+		long inSum = 0;
+		long outSum = 0;
+		int maxIn = 0;
+		int maxOut = 0;
+		for (int node = 0; node < graph.nodeCount(); node++) {
+			int in = graph.followerCount(node);
+			int out = graph.followingCount(node);
+			maxIn = Math.max(maxIn, in);
+			maxOut = Math.max(maxOut, out);
+			for (int i = 0; i < in; i++) {
+				inSum += graph.follower(node, i);
+			}
+			for (int i = 0; i < out; i++) {
+				outSum += graph.following(node, i);
+			}
+		}
+		System.out.println(graph.nodeCount() + " nodes, " + graph.edgeCount() + " edges, most followers " + maxIn + ", most following " + maxOut);
+		System.out.println("Pass over both directions: " + (System.nanoTime() - begin) / 1000000 + " ms");
+		if (args.length == 1) {
+			return;
+		}
+
+		// Followers of each successfully crawled id, merged across partial chunks and recrawls - the chunks of a
+		// crawl that failed after them are dropped
+		HashMap<Integer, TreeSet<Integer>> expected = new HashMap<Integer, TreeSet<Integer>>();
+		HashSet<Integer> failed = new HashSet<Integer>();
+		for (int i = 1; i < args.length; i++) {
+			for (String fileName : SegmentReader.segments(args[i])) {
+				SegmentReader reader = SegmentReader.open(fileName);
+				CrawlResult result;
+				while ((result = reader.next()) != null) {
+					if (!result.isSuccessful() && !result.isPartial()) {
+						failed.add(result.getTwitterId());
+					} else {
+						TreeSet<Integer> followers = expected.get(result.getTwitterId());
+						if (followers == null) {
+							followers = new TreeSet<Integer>();
+							expected.put(result.getTwitterId(), followers);
+						}
+						for (int followerId : result.getFollowers()) {
+							followers.add(followerId);
+						}
+					}
+				}
+				reader.close();
+			}
+		}
+		expected.keySet().removeAll(failed);
+		long expectedEdges = 0;
+		for (TreeSet<Integer> followers : expected.values()) {
+			expectedEdges += followers.size();
+		}
+		boolean ok = (expectedEdges == graph.edgeCount());
+		for (Map.Entry<Integer, TreeSet<Integer>> entry : expected.entrySet()) {
+			int node = graph.nodeOf(entry.getKey());
+			if (node < 0 || graph.followerCount(node) != entry.getValue().size()) {
+				ok = false;
+				break;
+			}
+			int i = 0;
+			for (int followerId : entry.getValue()) {
+				int follower = graph.follower(node, i++);
+				if (graph.idOf(follower) != followerId || !following(graph, follower, node)) {
+					ok = false;
+				}
+			}
+		}
+		System.out.println("Checked " + expected.size() + " crawled ids against the logs: " + (ok ? "match" : "MISMATCH"));
+	}
+
+	// Whether a follows b, by binary search of a's sorted row
+	private static boolean following(FollowerGraph graph, int a, int b) {
+		int low = 0;
+		int high = graph.followingCount(a);
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (graph.following(a, middle) < b) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low < graph.followingCount(a) && graph.following(a, low) == b;
+	}
+}
@@ -0,0 +1,366 @@
+package graph;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import common.*;
+
+// Offline builder of the FollowerGraph files from the success logs of a crawl
+//	0. Ids whose crawl failed after PARTIAL chunks were logged are found, and their chunks left out of every pass
+//	1. Every crawled id and follower id is collected in per thread buffers, which are sorted and spilled to run files
+//		when full, then the runs are merged into the sorted ids file - a node is its rank there
+//	2. Followers per node are counted, the counts summed into offsets, and a second pass fills each row
+//	3. Rows are sorted and repeats from PARTIAL chunks and recrawls dropped, then compacted into in.edges
+//	4. in.edges is transposed the same way, count then fill, into out.edges
+// Passes over the logs are SegmentScan streams, and the rest split by node, all on one fork-join pool
+// Counts, offsets and edges live in mapped files, so the heap only holds the sort buffers, a sample of the ids
+// and one row per thread
+public class GraphBuilder {
+	private static final int SORT_INTS = Integer.getInteger("graph.sortInts", 1 << 22);	// Per thread, before spilling a run
+	private static final int SAMPLE_EVERY = 256;
+	private static final int THREADS = Integer.getInteger("graph.threads", Runtime.getRuntime().availableProcessors());
+
+	private String directory;
+	private String[] baseNames;
+	private ForkJoinPool pool;
+	private int nodeCount;
+	private MappedFile ids;
+	private int[] sample;		// Every SAMPLE_EVERY'th id, on the heap
+	private int[] abandoned = new int[0];	// Sorted ids whose chunks are left out
+
+	// Spilled runs of sorted unique ids
+	private ArrayList<File> runs = new ArrayList<File>();
+	private ArrayList<IdBuffer> buffers = new ArrayList<IdBuffer>();
+	private ThreadLocal<IdBuffer> buffer = new ThreadLocal<IdBuffer>() {
+		protected IdBuffer initialValue() {
+			IdBuffer buffer = new IdBuffer();
+			synchronized (buffers) {
+				buffers.add(buffer);
+			}
+			return buffer;
+		}
+	};
+
+	// Per thread row, for sorting
+	private static ThreadLocal<int[]> rows = new ThreadLocal<int[]>() {
+		protected int[] initialValue() { return new int[1024]; }
+	};
+
+	public GraphBuilder(String directory, String[] baseNames, int threads) {
+		this.directory = directory;
+		this.baseNames = baseNames;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	public void build() throws IOException {
+		(new File(this.directory)).mkdirs();
+		try {
+			long begin = System.nanoTime();
+			this.collectAbandoned();
+			System.out.println("abandoned: " + this.abandoned.length + " failed ids with chunks in " + (System.nanoTime() - begin) / 1000000 + " ms");
+
+			begin = System.nanoTime();
+			this.collectIds();
+			System.out.println("ids: " + this.nodeCount + " nodes in " + (System.nanoTime() - begin) / 1000000 + " ms, " + this.runs.size() + " runs");
+
+			begin = System.nanoTime();
+			long edges = this.buildFollowers();
+			System.out.println("followers: " + edges + " edges in " + (System.nanoTime() - begin) / 1000000 + " ms");
+
+			begin = System.nanoTime();
+			this.buildFollowing(edges);
+			System.out.println("following: " + (System.nanoTime() - begin) / 1000000 + " ms");
+		} finally {
+			this.pool.shutdown();
+		}
+	}
+
+	private String file(String name) {
+		return this.directory + File.separator + name;
+	}
+
+	// Run a parallel pass on the builder's pool
+	private void run(Runnable pass) throws IOException {
+		try {
+			this.pool.submit(pass).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException)e.getCause()).getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// SUCCESS records, and PARTIAL chunks of crawls that did not fail after them
+	private Stream<ResultView> crawled() {
+		return SegmentScan.stream(this.baseNames).filter(view -> view.isSuccessful()
+			|| (view.isPartial() && Arrays.binarySearch(this.abandoned, view.getTwitterId()) < 0));
+	}
+
+	// The controller logs a failure to the success log too, so an id with both chunks and a failure record there
+	// failed after the chunks were logged - only large accounts have chunks, so those are found first and failures
+	// kept only among them
+	private void collectAbandoned() throws IOException {
+		int[][] chunked = new int[1][];
+		this.run(() -> chunked[0] = SegmentScan.stream(this.baseNames).filter(ResultView::isPartial)
+			.mapToInt(ResultView::getTwitterId).distinct().sorted().toArray());
+		if (chunked[0].length == 0) {
+			return;
+		}
+		int[][] abandoned = new int[1][];
+		this.run(() -> abandoned[0] = SegmentScan.stream(this.baseNames)
+			.filter(view -> !view.isSuccessful() && !view.isPartial() && Arrays.binarySearch(chunked[0], view.getTwitterId()) >= 0)
+			.mapToInt(ResultView::getTwitterId).distinct().sorted().toArray());
+		this.abandoned = abandoned[0];
+	}
+
+	private void collectIds() throws IOException {
+		this.run(() -> this.crawled().forEach(view -> {
+			IdBuffer ids = this.buffer.get();
+			ids.add(view.getTwitterId());
+			for (int i = 0; i < view.getFollowerCount(); i++) {
+				ids.add(view.getFollower(i));
+			}
+		}));
+		for (IdBuffer ids : this.buffers) {
+			ids.spill();
+		}
+
+		// Merge the runs, dropping repeats
+		DataInputStream[] in = new DataInputStream[this.runs.size()];
+		PriorityQueue<long[]> heads = new PriorityQueue<long[]>(Math.max(1, in.length), new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) { return Long.compare(a[0], b[0]); }
+		});
+		for (int run = 0; run < in.length; run++) {
+			in[run] = new DataInputStream(new BufferedInputStream(new FileInputStream(this.runs.get(run)), 1 << 16));
+			this.nextHead(in[run], run, heads);
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file(FollowerGraph.IDS)), 1 << 16));
+		long last = -1;
+		int count = 0;
+		while (!heads.isEmpty()) {
+			long[] head = heads.poll();
+			if (head[0] != last) {
+				out.writeInt((int)head[0]);
+				last = head[0];
+				count++;
+			}
+			this.nextHead(in[(int)head[1]], (int)head[1], heads);
+		}
+		out.close();
+		for (int run = 0; run < in.length; run++) {
+			in[run].close();
+			this.runs.get(run).delete();
+		}
+		this.nodeCount = count;
+		this.ids = MappedFile.open(this.file(FollowerGraph.IDS));
+		this.sample = new int[(count + SAMPLE_EVERY - 1) / SAMPLE_EVERY];
+		for (int i = 0; i < this.sample.length; i++) {
+			this.sample[i] = this.ids.getInt((long)i * SAMPLE_EVERY);
+		}
+	}
+
+	private void nextHead(DataInputStream in, int run, PriorityQueue<long[]> heads) throws IOException {
+		try {
+			heads.add(new long[] { in.readInt(), run });
+		} catch (EOFException e) {
+			// Run done
+		}
+	}
+
+	// Node of an id known to be in ids - the sample narrows the search to SAMPLE_EVERY ids of the mapping,
+	// so a lookup costs a few cache misses rather than one per step of a search over the whole file
+	private int nodeOf(int twitterId) {
+		int low = 0;
+		int high = this.sample.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.sample[middle] <= twitterId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		low = Math.max(0, low - 1) * SAMPLE_EVERY;
+		high = Math.min(this.nodeCount, low + SAMPLE_EVERY);
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.ids.getInt(middle) < twitterId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// Count, fill, then sort and compact the rows of each crawled id, returning the edge count
+	private long buildFollowers() throws IOException {
+		File cursorFile = new File(this.file("in.cursor.tmp"));
+		File rawFile = new File(this.file("in.raw.tmp"));
+		MappedFile cursor = new MappedFile(cursorFile.getPath(), 8L * (this.nodeCount + 1), true);
+		try {
+			// Followers per node, with repeats, at node + 1, then summed into each row's start
+			this.run(() -> this.crawled().forEach(view -> {
+				cursor.addLong(this.nodeOf(view.getTwitterId()) + 1, view.getFollowerCount());
+			}));
+			long rawEdges = prefixSum(cursor, this.nodeCount);
+
+			// Fill - afterwards the cursor of each node is where the next one starts
+			MappedFile raw = new MappedFile(rawFile.getPath(), 4 * rawEdges, true);
+			this.run(() -> this.crawled().forEach(view -> {
+				long position = cursor.addLong(this.nodeOf(view.getTwitterId()), view.getFollowerCount());
+				for (int i = 0; i < view.getFollowerCount(); i++) {
+					raw.putInt(position + i, this.nodeOf(view.getFollower(i)));
+				}
+			}));
+
+			// Sort each row and drop repeats in place, keeping the unique count at node + 1 for the final offsets
+			MappedFile offsets = new MappedFile(this.file(FollowerGraph.IN_OFFSETS), 8L * (this.nodeCount + 1), true);
+			this.run(() -> IntStream.range(0, this.nodeCount).parallel().forEach(node -> {
+				long start = (node == 0) ? 0 : cursor.getLong(node - 1);
+				offsets.putLong(node + 1, sortUnique(raw, start, cursor.getLong(node), true));
+			}));
+			long edges = prefixSum(offsets, this.nodeCount);
+
+			MappedFile in = new MappedFile(this.file(FollowerGraph.IN_EDGES), 4 * edges, true);
+			this.run(() -> IntStream.range(0, this.nodeCount).parallel().forEach(node -> {
+				long from = (node == 0) ? 0 : cursor.getLong(node - 1);
+				long to = offsets.getLong(node + 1);
+				for (long position = offsets.getLong(node); position < to; position++) {
+					in.putInt(position, raw.getInt(from++));
+				}
+			}));
+			in.force();
+			offsets.force();
+			return edges;
+		} finally {
+			cursorFile.delete();
+			rawFile.delete();
+		}
+	}
+
+	// Transpose in.edges - count each node's following, sum into offsets, fill, then sort the rows
+	private void buildFollowing(long edges) throws IOException {
+		File cursorFile = new File(this.file("out.cursor.tmp"));
+		MappedFile inOffsets = MappedFile.open(this.file(FollowerGraph.IN_OFFSETS));
+		MappedFile in = MappedFile.open(this.file(FollowerGraph.IN_EDGES));
+		MappedFile offsets = new MappedFile(this.file(FollowerGraph.OUT_OFFSETS), 8L * (this.nodeCount + 1), true);
+		MappedFile cursor = new MappedFile(cursorFile.getPath(), 8L * (this.nodeCount + 1), true);
+		try {
+			this.run(() -> IntStream.range(0, this.nodeCount).parallel().forEach(node -> {
+				long to = inOffsets.getLong(node + 1);
+				for (long position = inOffsets.getLong(node); position < to; position++) {
+					offsets.addLong(in.getInt(position) + 1, 1);
+				}
+			}));
+			prefixSum(offsets, this.nodeCount);
+			for (int node = 0; node <= this.nodeCount; node++) {
+				cursor.putLong(node, offsets.getLong(node));
+			}
+
+			MappedFile out = new MappedFile(this.file(FollowerGraph.OUT_EDGES), 4 * edges, true);
+			this.run(() -> IntStream.range(0, this.nodeCount).parallel().forEach(node -> {
+				long to = inOffsets.getLong(node + 1);
+				for (long position = inOffsets.getLong(node); position < to; position++) {
+					out.putInt(cursor.addLong(in.getInt(position), 1), node);
+				}
+			}));
+			this.run(() -> IntStream.range(0, this.nodeCount).parallel().forEach(node -> {
+				sortUnique(out, offsets.getLong(node), offsets.getLong(node + 1), false);
+			}));
+			out.force();
+			offsets.force();
+		} finally {
+			cursorFile.delete();
+		}
+	}
+
+	// Turn counts at 1..count into starts at 0..count, returning the total
+	private static long prefixSum(MappedFile offsets, int count) {
+		long sum = 0;
+		for (int node = 0; node <= count; node++) {
+			sum += offsets.getLong(node);
+			offsets.putLong(node, sum);
+		}
+		return sum;
+	}
+
+	// Sort the ints in [from, to) through the thread's row, dropping repeats if asked, and return how many are left
+	private static int sortUnique(MappedFile file, long from, long to, boolean unique) {
+		int length = (int)(to - from);
+		int[] row = rows.get();
+		if (row.length < length) {
+			row = new int[Math.max(length, row.length * 2)];
+			rows.set(row);
+		}
+		for (int i = 0; i < length; i++) {
+			row[i] = file.getInt(from + i);
+		}
+		Arrays.sort(row, 0, length);
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			if (!unique || i == 0 || row[i] != row[i - 1]) {
+				file.putInt(from + kept++, row[i]);
+			}
+		}
+		return kept;
+	}
+
+	// Ids seen by one thread, sorted and spilled as a run when full
+	private class IdBuffer {
+		private int[] ids = new int[SORT_INTS];
+		private int count = 0;
+
+		void add(int twitterId) {
+			if (this.count == this.ids.length) {
+				this.spill();
+			}
+			this.ids[this.count++] = twitterId;
+		}
+
+		void spill() {
+			if (this.count == 0) {
+				return;
+			}
+			Arrays.sort(this.ids, 0, this.count);
+			try {
+				File run = File.createTempFile("ids", ".run.tmp", new File(directory));
+				synchronized (runs) {
+					runs.add(run);
+				}
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+				for (int i = 0; i < this.count; i++) {
+					if (i == 0 || this.ids[i] != this.ids[i - 1]) {
+						out.writeInt(this.ids[i]);
+					}
+				}
+				out.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.count = 0;
+		}
+	}
+
+	// Build the graph of the success logs into a directory
+	// Usage: GraphBuilder directory baseName... (like log/crawl_s)
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: directory baseName...");
+			return;
+		}
+		try {
+			long begin = System.nanoTime();
+			GraphBuilder builder = new GraphBuilder(args[0], Arrays.copyOfRange(args, 1, args.length), THREADS);
+			builder.build();
+			System.out.println("Built in " + (System.nanoTime() - begin) / 1000000 + " ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
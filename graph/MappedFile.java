@@ -0,0 +1,86 @@
+package graph;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// A file mapped in 1GB chunks, so arrays of ints and longs larger than one mapping can be addressed by a long index
+// Values never straddle chunks, and the atomic adds work on the mapping itself, so passes can count in parallel
+class MappedFile {
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private MappedByteBuffer[] chunks;
+	private long size;
+
+	// Map a file of size bytes - when writable, it is created or cleared, so it starts as zeros
+	MappedFile(String fileName, long size, boolean writable) throws IOException {
+		this.size = size;
+		FileChannel channel = writable
+			? FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+			: FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			if (writable) {
+				channel.truncate(0);
+				if (size > 0) {
+					channel.write(ByteBuffer.allocate(1), size - 1);
+				}
+			}
+			this.chunks = new MappedByteBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_SHIFT)];
+			for (int chunk = 0; chunk < this.chunks.length; chunk++) {
+				long offset = (long)chunk << CHUNK_SHIFT;
+				this.chunks[chunk] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+					offset, Math.min(size - offset, 1L << CHUNK_SHIFT));
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	static MappedFile open(String fileName) throws IOException {
+		return new MappedFile(fileName, (new File(fileName)).length(), false);
+	}
+
+	long size() { return this.size; }
+
+	int getInt(long i) {
+		long position = i << 2;
+		return this.chunks[(int)(position >>> CHUNK_SHIFT)].getInt((int)(position & CHUNK_MASK));
+	}
+
+	void putInt(long i, int value) {
+		long position = i << 2;
+		this.chunks[(int)(position >>> CHUNK_SHIFT)].putInt((int)(position & CHUNK_MASK), value);
+	}
+
+	long getLong(long i) {
+		long position = i << 3;
+		return this.chunks[(int)(position >>> CHUNK_SHIFT)].getLong((int)(position & CHUNK_MASK));
+	}
+
+	void putLong(long i, long value) {
+		long position = i << 3;
+		this.chunks[(int)(position >>> CHUNK_SHIFT)].putLong((int)(position & CHUNK_MASK), value);
+	}
+
+	// Atomically add to the int or long at index i, returning the value before
+	int addInt(long i, int delta) {
+		long position = i << 2;
+		return (int)INTS.getAndAdd(this.chunks[(int)(position >>> CHUNK_SHIFT)], (int)(position & CHUNK_MASK), delta);
+	}
+
+	long addLong(long i, long delta) {
+		long position = i << 3;
+		return (long)LONGS.getAndAdd(this.chunks[(int)(position >>> CHUNK_SHIFT)], (int)(position & CHUNK_MASK), delta);
+	}
+
+	void force() {
+		for (MappedByteBuffer chunk : this.chunks) {
+			chunk.force();
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package lookup;
+
+import java.io.*;
+import java.util.*;
+import common.*;
+
+// Random access to the followers logged for an id, over every segment of a success log
+// Segments are written in crawl order, so every segment's id range covers nearly every id - instead the ids of all
+// complete segments are merged into one sorted index of (id, segment), six bytes per record on the heap, so a lookup
+// is one binary search over it, then a search of only the segments holding the id and a decode of only the blocks
+// holding its records - segments still being written are searched one by one
+// Followers from PARTIAL chunks and recrawls are merged, sorted and unique - unless the crawl failed after some
+// chunks were logged, which the failure record the controller logs with them says
+public class FollowerIndex {
+	private static final int MAX_MERGED = Character.MAX_VALUE;
+
+	private String baseName;
+	private volatile Catalog catalog = new Catalog(new MappedSegment[0], 0, new int[0], new char[0]);
+
+	// Segments and the merged index over the first merged of them - replaced whole by a refresh
+	private static class Catalog {
+		final MappedSegment[] segments;
+		final int merged;
+		final int[] ids;
+		final char[] segmentOf;
+
+		Catalog(MappedSegment[] segments, int merged, int[] ids, char[] segmentOf) {
+			this.segments = segments;
+			this.merged = merged;
+			this.ids = ids;
+			this.segmentOf = segmentOf;
+		}
+	}
+
+	public FollowerIndex(String baseName) throws IOException {
+		this.baseName = baseName;
+		this.refresh();
+	}
+
+	// Pick up segments written since, reopening any that were still being written
+	public synchronized void refresh() throws IOException {
+		ArrayList<String> files = SegmentReader.segments(this.baseName);
+		Catalog old = this.catalog;
+		ArrayList<MappedSegment> current = new ArrayList<MappedSegment>(Arrays.asList(old.segments));
+		while (current.size() > 0 && (current.size() > files.size() || !current.get(current.size() - 1).isComplete())) {
+			current.remove(current.size() - 1);
+		}
+		for (int segment = current.size(); segment < files.size(); segment++) {
+			current.add(MappedSegment.open(files.get(segment)));
+		}
+		MappedSegment[] segments = current.toArray(new MappedSegment[0]);
+
+		// Merge the complete segments not merged yet, or start over if any merged one went away
+		int merged = 0;
+		while (merged < segments.length && merged < MAX_MERGED && segments[merged].isComplete()) {
+			merged++;
+		}
+		int from = old.merged;
+		if (from > merged) {
+			from = 0;
+		}
+		for (int segment = 0; segment < from; segment++) {
+			if (segments[segment] != old.segments[segment]) {
+				from = 0;
+			}
+		}
+		this.catalog = (from == merged) ? new Catalog(segments, merged, old.ids, old.segmentOf)
+			: merge((from == 0) ? new Catalog(segments, 0, new int[0], new char[0]) : old, segments, from, merged);
+	}
+
+	// Merge segments [from, to) into the index - their entries are sorted as packed longs, then merged with the
+	// index in one pass
+	private static Catalog merge(Catalog old, MappedSegment[] segments, int from, int to) {
+		long count = 0;
+		for (int segment = from; segment < to; segment++) {
+			count += segments[segment].idCount();
+		}
+		if (old.ids.length + count > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Too many records to index: " + (old.ids.length + count));
+		}
+		long[] added = new long[(int)count];
+		int n = 0;
+		for (int segment = from; segment < to; segment++) {
+			MappedSegment mapped = segments[segment];
+			for (int i = 0; i < mapped.idCount(); i++) {
+				added[n++] = ((long)mapped.idAt(i) << 16) | segment;
+			}
+		}
+		Arrays.sort(added);
+
+		int[] ids = new int[old.ids.length + added.length];
+		char[] segmentOf = new char[ids.length];
+		int i = 0;
+		int j = 0;
+		for (int k = 0; k < ids.length; k++) {
+			if (j == added.length || (i < old.ids.length && old.ids[i] <= (int)(added[j] >> 16))) {
+				ids[k] = old.ids[i];
+				segmentOf[k] = old.segmentOf[i++];
+			} else {
+				ids[k] = (int)(added[j] >> 16);
+				segmentOf[k] = (char)added[j++];
+			}
+		}
+		return new Catalog(segments, to, ids, segmentOf);
+	}
+
+	public int segmentCount() { return this.catalog.segments.length; }
+
+	// Heap taken by the merged index in bytes
+	public long memoryUsage() { return this.catalog.ids.length * 6L; }
+
+	// Followers of the id into a reusable holder, returning false if it has no successful crawl
+	public boolean followersOf(int twitterId, Followers into) throws IOException {
+		into.clear();
+		Catalog catalog = this.catalog;
+		int low = 0;
+		int high = catalog.ids.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (catalog.ids[middle] < twitterId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		// An id logged more than once in a segment has an entry for each, but the segment is searched once
+		int last = -1;
+		for (int i = low; i < catalog.ids.length && catalog.ids[i] == twitterId; i++) {
+			if (catalog.segmentOf[i] != last) {
+				last = catalog.segmentOf[i];
+				catalog.segments[last].lookup(twitterId, into);
+			}
+		}
+		for (int segment = catalog.merged; segment < catalog.segments.length; segment++) {
+			MappedSegment mapped = catalog.segments[segment];
+			if (twitterId >= mapped.firstId() && twitterId <= mapped.lastId()) {
+				mapped.lookup(twitterId, into);
+			}
+		}
+		if (into.isFailed()) {
+			into.clear();
+		} else if (into.isFound()) {
+			into.sortUnique();
+		}
+		return into.isFound();
+	}
+
+	// Followers of the id, or null if it has no successful crawl
+	public int[] followersOf(int twitterId) throws IOException {
+		Followers followers = new Followers();
+		return this.followersOf(twitterId, followers) ? followers.toArray() : null;
+	}
+
+	// Testing program - random lookups of logged ids, against a full scan for a few of them
+	// With abandoned, a check that PARTIAL chunks of a crawl that then failed are dropped, in a segment of their own
+	// or not
+	// Usage: FollowerIndex baseName [lookups] | FollowerIndex abandoned
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: baseName [lookups] | abandoned");
+			return;
+		}
+		if (args[0].equals("abandoned")) {
+			System.exit(abandonedCheck() ? 0 : 1);
+		}
+		int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+		long begin = System.nanoTime();
+		FollowerIndex index = new FollowerIndex(args[0]);
+		System.out.println("Opened " + index.segmentCount() + " segments in " + (System.nanoTime() - begin) / 1000000 + " ms, "
+			+ (index.memoryUsage() >> 10) + " KB of merged index");
+
+		// Ids to look up, and the time of a full scan
+		begin = System.nanoTime();
+		HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		HashMap<Integer, HashSet<Integer>> union = new HashMap<Integer, HashSet<Integer>>();
+		HashSet<Integer> failed = new HashSet<Integer>();
+		for (String fileName : SegmentReader.segments(args[0])) {
+			SegmentReader reader = SegmentReader.open(fileName);
+			CrawlResult result;
+			while ((result = reader.next()) != null) {
+				if (!result.isSuccessful() && !result.isPartial()) {
+					failed.add(result.getTwitterId());
+				} else {
+					HashSet<Integer> followers = union.get(result.getTwitterId());
+					if (followers == null) {
+						followers = new HashSet<Integer>();
+						union.put(result.getTwitterId(), followers);
+					}
+					for (int followerId : result.getFollowers()) {
+						followers.add(followerId);
+					}
+				}
+			}
+			reader.close();
+		}
+		union.keySet().removeAll(failed);
+		for (Map.Entry<Integer, HashSet<Integer>> entry : union.entrySet()) {
+			expected.put(entry.getKey(), entry.getValue().size());
+		}
+		System.out.println("Full scan: " + (System.nanoTime() - begin) / 1000000 + " ms for " + expected.size() + " ids");
+		if (expected.size() == 0) {
+			return;
+		}
+
+		int[] ids = new int[expected.size()];
+		int n = 0;
+		for (int twitterId : expected.keySet()) {
+			ids[n++] = twitterId;
+		}
+		Followers followers = new Followers();
+		for (int twitterId : ids) {
+			if (!index.followersOf(twitterId, followers) || followers.size() != expected.get(twitterId)) {
+				System.out.println("Mismatch for " + twitterId);
+				return;
+			}
+		}
+
+		Random random = new Random(42);
+		long total = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			begin = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				index.followersOf(ids[random.nextInt(ids.length)], followers);
+				total += followers.size();
+			}
+			System.out.println(lookups + " lookups: " + (System.nanoTime() - begin) / lookups + " ns each (" + total + " followers)");
+		}
+	}
+
+	// Log an account crawled in chunks, one whose chunks are followed by a failure in the same segment, and one whose
+	// chunks are a segment behind its failure - only the first may have followers
+	private static boolean abandonedCheck() throws IOException {
+		String baseName = System.getProperty("java.io.tmpdir") + File.separator + "abandoned_" + System.currentTimeMillis();
+		SegmentedLogger log = new SegmentedLogger(baseName);
+		log.addResult(new CrawlResult(1, ResultCode.PARTIAL, new int[] { 10, 11 }));
+		log.addResult(new CrawlResult(2, ResultCode.PARTIAL, new int[] { 20, 21 }));
+		log.addResult(new CrawlResult(3, ResultCode.PARTIAL, new int[] { 30, 31 }));
+		log.addResult(new CrawlResult(1, ResultCode.SUCCESS, new int[] { 12 }));
+		log.addResult(new CrawlResult(2, ResultCode.NOT_AUTHORIZED));
+		for (int twitterId = 100; twitterId < 100100; twitterId++) {
+			log.addResult(new CrawlResult(twitterId, ResultCode.SUCCESS, new int[] { twitterId + 1 }));
+		}
+		log.addResult(new CrawlResult(3, ResultCode.FAILED));
+		log.close();
+
+		FollowerIndex index = new FollowerIndex(baseName);
+		int[] crawled = index.followersOf(1);
+		boolean ok = (crawled != null && Arrays.equals(crawled, new int[] { 10, 11, 12 }));
+		ok &= (index.followersOf(2) == null && index.followersOf(3) == null);
+		System.out.println(index.segmentCount() + " segments, followers of 1 " + Arrays.toString(crawled) + ", of 2 "
+			+ Arrays.toString(index.followersOf(2)) + ", of 3 " + Arrays.toString(index.followersOf(3)));
+		for (String fileName : SegmentReader.segments(baseName)) {
+			(new File(fileName)).delete();
+		}
+		System.out.println(ok ? "OK" : "FAILED");
+		return ok;
+	}
+}
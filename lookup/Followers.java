@@ -0,0 +1,57 @@
+package lookup;
+
+import java.util.*;
+
+// Reusable holder for the result of a lookup, so repeated lookups need not allocate
+public class Followers {
+	private int[] ids = new int[1024];
+	private int count = 0;
+	private boolean found = false;
+	private boolean failed = false;
+
+	public int size() { return this.count; }
+	public int get(int i) { return this.ids[i]; }
+	public boolean isFound() { return this.found; }
+
+	public int[] toArray() {
+		return Arrays.copyOf(this.ids, this.count);
+	}
+
+	void clear() {
+		this.count = 0;
+		this.found = false;
+		this.failed = false;
+	}
+
+	void found() {
+		this.found = true;
+	}
+
+	// The crawl of the id ended in a failure, so any PARTIAL chunks logged before it do not count
+	void failed() {
+		this.failed = true;
+	}
+
+	boolean isFailed() {
+		return this.failed;
+	}
+
+	void add(int followerId) {
+		if (this.count == this.ids.length) {
+			this.ids = Arrays.copyOf(this.ids, this.count * 2);
+		}
+		this.ids[this.count++] = followerId;
+	}
+
+	// Partial chunks and recrawls may repeat followers - sort and drop the repeats
+	void sortUnique() {
+		Arrays.sort(this.ids, 0, this.count);
+		int unique = 0;
+		for (int i = 0; i < this.count; i++) {
+			if (unique == 0 || this.ids[i] != this.ids[unique - 1]) {
+				this.ids[unique++] = this.ids[i];
+			}
+		}
+		this.count = unique;
+	}
+}
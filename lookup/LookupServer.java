@@ -0,0 +1,99 @@
+package lookup;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.*;
+
+// Small local query endpoint over a FollowerIndex
+//	GET /followers?id=<twitterId> - JSON array of the followers, or 404 if the id has no successful crawl
+//	GET /refresh - pick up segments written since the server started
+public class LookupServer {
+	private static final int THREADS = 8;
+
+	private FollowerIndex index;
+	private HttpServer server;
+
+	// Per thread holder, so lookups do not allocate
+	private static ThreadLocal<Followers> holders = new ThreadLocal<Followers>() {
+		protected Followers initialValue() { return new Followers(); }
+	};
+
+	public LookupServer(int port, FollowerIndex index) throws IOException {
+		this.index = index;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.setExecutor(Executors.newFixedThreadPool(THREADS));
+		this.server.createContext("/followers", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException { followers(exchange); }
+		});
+		this.server.createContext("/refresh", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException { refresh(exchange); }
+		});
+	}
+
+	public void start() {
+		this.server.start();
+	}
+
+	public void stop() {
+		this.server.stop(0);
+	}
+
+	private void followers(HttpExchange exchange) throws IOException {
+		int twitterId;
+		try {
+			twitterId = Integer.parseInt(parameter(exchange.getRequestURI().getRawQuery(), "id"));
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "Expected /followers?id=<twitterId>");
+			return;
+		}
+
+		Followers followers = holders.get();
+		if (!this.index.followersOf(twitterId, followers)) {
+			respond(exchange, 404, "[]");
+			return;
+		}
+		StringBuilder body = new StringBuilder(followers.size() * 10 + 2);
+		body.append('[');
+		for (int i = 0; i < followers.size(); i++) {
+			if (i > 0) body.append(',');
+			body.append(followers.get(i));
+		}
+		respond(exchange, 200, body.append(']').toString());
+	}
+
+	private void refresh(HttpExchange exchange) throws IOException {
+		this.index.refresh();
+		respond(exchange, 200, "{\"segments\":" + this.index.segmentCount() + "}");
+	}
+
+	private static String parameter(String query, String name) {
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				if (pair.startsWith(name + "=")) {
+					return pair.substring(name.length() + 1);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 2) {
+			LookupServer server = new LookupServer(Integer.parseInt(args[0]), new FollowerIndex(args[1]));
+			server.start();
+			System.out.println("Serving lookups for " + args[1] + " on port " + args[0]);
+		} else {
+			System.out.println("Usage: port baseName, where baseName is the success log, like log/crawl_s");
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package lookup;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.*;
+import common.*;
+
+// One memory mapped log segment and its twitterId index
+// Lookups only use absolute reads of the mapping, so any number of threads can share a segment
+abstract class MappedSegment {
+	protected ByteBuffer map;
+	protected boolean complete;		// Will not change on disk, so need not be reopened by a refresh
+
+	static MappedSegment open(String fileName) throws IOException {
+		if (fileName.endsWith(SegmentFormat.EXTENSION)) {
+			return new BlockSegment(fileName);
+		}
+		return new OldSegment(fileName);
+	}
+
+	boolean isComplete() { return this.complete; }
+
+	// Smallest and largest ids in the index, so most segments are skipped without a search
+	abstract int firstId();
+	abstract int lastId();
+
+	// Add the followers from every SUCCESS or PARTIAL record for the id, returning whether there were any -
+	// a failure record for the id marks the holder failed
+	abstract boolean lookup(int twitterId, Followers into) throws IOException;
+
+	static ByteBuffer map(FileChannel channel, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Segment too large to map: " + size + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	// First index entry for the id, searching size entries with idAt, or -1
+	int find(int twitterId, int size) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.idAt(middle) < twitterId) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return (low < size && this.idAt(low) == twitterId) ? low : -1;
+	}
+
+	// Entries in the index, and the id of each in order
+	abstract int idCount();
+	abstract int idAt(int i);
+}
+
+// A .seg segment - the footer index is searched in place, or for a segment still being written,
+// its complete blocks are scanned into an index on the heap
+class BlockSegment extends MappedSegment {
+	private int indexOffset;
+	private int indexCount;
+	private SegmentIndex scanned;
+
+	// Per thread inflater and buffer for deflated blocks
+	private static ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() { return new Scratch(); }
+	};
+
+	BlockSegment(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			if (!SegmentFormat.validHeader(channel)) {
+				throw new IOException("Not a segment: " + fileName);
+			}
+			long[] trailer = SegmentFormat.readTrailer(channel);
+			if (trailer != null) {
+				this.map = map(channel, channel.size());
+				this.indexOffset = (int)trailer[0];
+				this.indexCount = (int)trailer[1];
+				this.complete = true;
+			} else {
+				this.scanned = SegmentIndex.scan(channel);
+				this.map = map(channel, this.scanned.dataEnd());
+				this.indexCount = this.scanned.size();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	int idAt(int i) {
+		return (this.scanned != null) ? this.scanned.idAt(i) : this.map.getInt(this.indexOffset + i * SegmentFormat.INDEX_ENTRY_BYTES);
+	}
+
+	private int offsetAt(int i) {
+		return (int)((this.scanned != null) ? this.scanned.offsetAt(i) : this.map.getLong(this.indexOffset + i * SegmentFormat.INDEX_ENTRY_BYTES + 4));
+	}
+
+	private int recordAt(int i) {
+		return (this.scanned != null) ? this.scanned.recordAt(i) : this.map.getInt(this.indexOffset + i * SegmentFormat.INDEX_ENTRY_BYTES + 12);
+	}
+
+	int idCount() { return this.indexCount; }
+	int firstId() { return (this.indexCount > 0) ? this.idAt(0) : Integer.MAX_VALUE; }
+	int lastId() { return (this.indexCount > 0) ? this.idAt(this.indexCount - 1) : Integer.MIN_VALUE; }
+
+	boolean lookup(int twitterId, Followers into) throws IOException {
+		boolean any = false;
+		for (int i = this.find(twitterId, this.indexCount); i >= 0 && i < this.indexCount && this.idAt(i) == twitterId; i++) {
+			any |= this.decode(this.offsetAt(i), this.recordAt(i), into);
+		}
+		return any;
+	}
+
+	// Decode the one record at record offset in a block - a deflated block is only inflated up to the record's end
+	private boolean decode(int offset, int record, Followers into) throws IOException {
+		int stored = this.map.getInt(offset);
+		int raw = this.map.getInt(offset + 4);
+		byte codec = this.map.get(offset + 12);
+		int data = offset + SegmentFormat.BLOCK_HEADER_BYTES;
+		Scratch local = scratch.get();
+		Cursor cursor = local.cursor;
+		if (codec == SegmentFormat.RAW) {
+			cursor.reset(this.map, data + record, data + raw);
+		} else {
+			// Enough for the id, code and count varints first, then the followers once the count is known
+			ByteBuffer inflated = local.start(this.map, data, stored, raw);
+			local.inflateTo(Math.min(raw, record + 11), offset);
+			cursor.reset(inflated, record, raw);
+			cursor.varint();
+			byte code = inflated.get(cursor.position);
+			if (code == ResultCode.SUCCESS.toInt() || code == ResultCode.PARTIAL.toInt()) {
+				cursor.position++;
+				int count = cursor.varint();
+				local.inflateTo((int)Math.min(raw, cursor.position + 5L * count), offset);
+			}
+			cursor.position = record;
+		}
+
+		cursor.varint();
+		ResultCode code = ResultCode.fromInt(cursor.bytes.get(cursor.position++));
+		if (code != ResultCode.SUCCESS && code != ResultCode.PARTIAL) {
+			into.failed();
+			return false;
+		}
+		into.found();
+		int count = cursor.varint();
+		int previous = 0;
+		for (int i = 0; i < count; i++) {
+			previous += cursor.varint();
+			into.add(previous);
+		}
+		return true;
+	}
+}
+
+// Varint reader over a buffer, with absolute reads
+class Cursor {
+	ByteBuffer bytes;
+	int position;
+	int end;
+
+	void reset(ByteBuffer bytes, int position, int end) {
+		this.bytes = bytes;
+		this.position = position;
+		this.end = end;
+	}
+
+	int varint() {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = this.bytes.get(this.position++);
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+}
+
+class Scratch {
+	Inflater inflater = new Inflater(true);
+	ByteBuffer inflated = ByteBuffer.allocate(1 << 17);
+	Cursor cursor = new Cursor();
+
+	// Begin inflating a block into the scratch buffer
+	ByteBuffer start(ByteBuffer map, int offset, int stored, int raw) {
+		if (this.inflated.capacity() < raw) {
+			this.inflated = ByteBuffer.allocate(raw);
+		}
+		ByteBuffer input = map.duplicate();
+		input.limit(offset + stored).position(offset);
+		this.inflated.clear();
+		this.inflater.reset();
+		this.inflater.setInput(input);
+		return this.inflated;
+	}
+
+	// Inflate more of the block until at least length bytes are out
+	void inflateTo(int length, int offset) throws IOException {
+		if (this.inflated.position() >= length) {
+			return;
+		}
+		this.inflated.limit(length);
+		try {
+			while (this.inflated.position() < length) {
+				if (this.inflater.inflate(this.inflated) == 0 && (this.inflater.finished() || this.inflater.needsInput())) {
+					throw new IOException("Short block at " + offset);
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block at " + offset);
+		}
+	}
+}
+
+// A segment in the older fixed width format of LegacyFormat, mapped and indexed by scanning it -
+// a .txt.gz is inflated once into a temporary file and mapped in turn
+class OldSegment extends MappedSegment {
+	private SegmentIndex index = new SegmentIndex();
+	private boolean followers;
+
+	OldSegment(String fileName) throws IOException {
+		this.map = LegacyFormat.map(fileName);
+		this.complete = fileName.endsWith(".gz");
+		this.followers = !LegacyFormat.isFailureLog(fileName);
+		int end = LegacyFormat.dataEnd(this.map, this.followers, this.complete);
+		for (int position = 0; position < end; position = LegacyFormat.recordEnd(this.map, position, end, this.followers)) {
+			this.index.add(this.map.getInt(position), position, 0);
+		}
+		this.index.sort();
+	}
+
+	int idCount() { return this.index.size(); }
+	int idAt(int i) { return this.index.idAt(i); }
+	int firstId() { return (this.index.size() > 0) ? this.index.idAt(0) : Integer.MAX_VALUE; }
+	int lastId() { return (this.index.size() > 0) ? this.index.idAt(this.index.size() - 1) : Integer.MIN_VALUE; }
+
+	boolean lookup(int twitterId, Followers into) {
+		if (!this.followers) {
+			return false;
+		}
+		boolean any = false;
+		int size = this.index.size();
+		for (int i = this.index.find(twitterId); i >= 0 && i < size && this.index.idAt(i) == twitterId; i++) {
+			int position = (int)this.index.offsetAt(i);
+			into.found();
+			any = true;
+			int count = this.map.getInt(position + 8);
+			for (int j = 0; j < count; j++) {
+				into.add(this.map.getInt(position + 12 + 4 * j));
+			}
+		}
+		return any;
+	}
+}
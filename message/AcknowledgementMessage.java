@@ -1,9 +1,13 @@
 package message;
 
+// Answer to a hello, carrying the controller's nonce for the session key
 public class AcknowledgementMessage extends Message {
 	private static final long serialVersionUID = 511733253135494123L;
+	private byte[] nonce;
 	
-	public AcknowledgementMessage(String key) {
-		super(key);
+	public AcknowledgementMessage(byte[] nonce) {
+		this.nonce = nonce;
 	}
+	
+	public byte[] getNonce() { return this.nonce; }
 }
@@ -4,8 +4,7 @@ public class AssignmentMessage extends Message {
 	private static final long serialVersionUID = -2019251839980257288L;
 	private int[] ids;
 	
-	public AssignmentMessage(String key, int[] ids) {
-		super(key);
+	public AssignmentMessage(int[] ids) {
 		this.ids = ids;
 	}
 	
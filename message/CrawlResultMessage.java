@@ -5,13 +5,19 @@ import common.*;
 public class CrawlResultMessage extends Message{
 	private static final long serialVersionUID = -1280447990349561359L;
 	private CrawlResult[] results;
+	private long window;
 	
-	public CrawlResultMessage(String key, CrawlResult[] results) {
-		super(key);
+	public CrawlResultMessage(CrawlResult[] results, long window) {
 		this.results = results;
+		this.window = window;
 	}
 	
 	public CrawlResult[] getResults() {
 		return this.results;
 	}
+	
+	// Total number of ids the worker will accept so far - completed ids plus free capacity
+	public long getWindow() {
+		return this.window;
+	}
 }
@@ -0,0 +1,24 @@
+package message;
+
+// Followers discovered by one controller that hash to another, sent to their owner in batches
+// Ids come in groups, each found under an account with the group's degree, so the owner can score them
+// Batches from one partition are numbered in sequence, so the owner can acknowledge them and drop one sent twice
+public class ForwardMessage extends Message {
+	private static final long serialVersionUID = 3306442418745390617L;
+	private int partition;
+	private long sequence;
+	private int[] degrees;
+	private int[][] ids;
+	
+	public ForwardMessage(int partition, long sequence, int[] degrees, int[][] ids) {
+		this.partition = partition;
+		this.sequence = sequence;
+		this.degrees = degrees;
+		this.ids = ids;
+	}
+	
+	public int getPartition() { return this.partition; }
+	public long getSequence() { return this.sequence; }
+	public int[] getDegrees() { return this.degrees; }
+	public int[][] getIds() { return this.ids; }
+}
@@ -0,0 +1,13 @@
+package message;
+
+// First frame on every connection, carrying the connecting side's nonce for the session key
+public class HelloMessage extends Message {
+	private static final long serialVersionUID = 2870952217446359618L;
+	private byte[] nonce;
+	
+	public HelloMessage(byte[] nonce) {
+		this.nonce = nonce;
+	}
+	
+	public byte[] getNonce() { return this.nonce; }
+}
@@ -0,0 +1,450 @@
+package message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+import common.*;
+
+// Length-prefixed binary framing for messages, shared by the blocking worker socket and the controller's selector loop
+// Frame: payload length (int), then the payload
+// Payload: magic (short), version (byte), type (byte), flags (byte), sequence number (long), then the body - deflated
+// when COMPRESSED is set - and last the session's tag over everything before it
+// Id lists are sorted and written as a varint count, the first id, and varint deltas
+public class MessageCodec {
+	public static final int MAX_FRAME = 1 << 28;
+	public static final int MAX_OPENING_FRAME = 1 << 16;	// Hello, register or probe, before anything is verified
+	private static final short MAGIC = 0x5457;
+	private static final byte VERSION = 8;
+	private static final int HEADER = 17;
+
+	// Message types
+	private static final byte REGISTER = 1;
+	private static final byte ACKNOWLEDGEMENT = 2;
+	private static final byte ASSIGNMENT = 3;
+	private static final byte CRAWL_RESULT = 4;
+	private static final byte FORWARD = 5;
+	private static final byte HELLO = 6;
+	private static final byte REVOKE = 7;
+	private static final byte PROBE = 8;
+	private static final byte PEER_STATUS = 9;
+
+	// Flags and compression - deflating large bodies is off unless -Dmessage.compress=true,
+	// as it costs more CPU than it saves on a fast link
+	private static final byte COMPRESSED = 1;
+	private static final boolean COMPRESS = Boolean.getBoolean("message.compress");
+	private static final int COMPRESS_THRESHOLD = 1 << 16;
+
+	// Encode a message as a complete frame signed by the session, ready to be written
+	// Id and follower arrays are sorted in place
+	public static ByteBuffer encode(Message m, Session session) throws IOException {
+		FrameWriter body = new FrameWriter(HEADER + 64);
+		body.position = HEADER;
+
+		byte type;
+		if (m instanceof HelloMessage) {
+			type = HELLO;
+			body.writeBytes(((HelloMessage)m).getNonce());
+		} else if (m instanceof RegisterMessage) {
+			type = REGISTER;
+			body.writeString(((RegisterMessage)m).getName());
+			body.writeString(((RegisterMessage)m).getUsername());
+			body.writeLong(((RegisterMessage)m).getWindow());
+			body.writeVarint(((RegisterMessage)m).getConcurrency());
+			body.writeVarint(((RegisterMessage)m).getRequestsPerHour());
+		} else if (m instanceof AcknowledgementMessage) {
+			type = ACKNOWLEDGEMENT;
+			body.writeBytes(((AcknowledgementMessage)m).getNonce());
+		} else if (m instanceof AssignmentMessage) {
+			type = ASSIGNMENT;
+			body.writeIds(((AssignmentMessage)m).getIds());
+		} else if (m instanceof RevokeMessage) {
+			type = REVOKE;
+			body.writeIds(((RevokeMessage)m).getIds());
+		} else if (m instanceof CrawlResultMessage) {
+			type = CRAWL_RESULT;
+			CrawlResult[] results = ((CrawlResultMessage)m).getResults();
+			body.writeLong(((CrawlResultMessage)m).getWindow());
+			body.writeVarint(results.length);
+			for (CrawlResult result : results) {
+				body.writeInt(result.getTwitterId());
+				body.writeByte(result.getResult().toInt());
+				body.writeIds(result.getFollowers());
+			}
+		} else if (m instanceof ForwardMessage) {
+			type = FORWARD;
+			int[] degrees = ((ForwardMessage)m).getDegrees();
+			int[][] ids = ((ForwardMessage)m).getIds();
+			body.writeVarint(((ForwardMessage)m).getPartition());
+			body.writeLong(((ForwardMessage)m).getSequence());
+			body.writeVarint(degrees.length);
+			for (int i = 0; i < degrees.length; i++) {
+				body.writeVarint(degrees[i]);
+				body.writeIds(ids[i]);
+			}
+		} else if (m instanceof ProbeMessage) {
+			type = PROBE;
+			body.writeVarint(((ProbeMessage)m).getPartition());
+			body.writeLong(((ProbeMessage)m).getRound());
+			body.writeByte(((ProbeMessage)m).isFinish() ? 1 : 0);
+		} else if (m instanceof PeerStatusMessage) {
+			type = PEER_STATUS;
+			body.writeLong(((PeerStatusMessage)m).getAcknowledged());
+			body.writeLong(((PeerStatusMessage)m).getRound());
+			body.writeByte(((PeerStatusMessage)m).isIdle() ? 1 : 0);
+			body.writeLong(((PeerStatusMessage)m).getReceived());
+		} else {
+			throw new IOException("Unknown message " + m.getClass().getName());
+		}
+
+		byte flags = 0;
+		if (COMPRESS && body.position - HEADER > COMPRESS_THRESHOLD) {
+			FrameWriter compressed = deflate(body);
+			if (compressed.position < body.position) {
+				body = compressed;
+				flags |= COMPRESSED;
+			}
+		}
+
+		// Header, then the tag over the header and body as they go on the wire
+		body.ensure(Session.TAG_BYTES);
+		ByteBuffer frame = ByteBuffer.wrap(body.bytes, 0, body.position + Session.TAG_BYTES);
+		frame.putInt(0, body.position + Session.TAG_BYTES - 4);
+		frame.putShort(4, MAGIC);
+		frame.put(6, VERSION);
+		frame.put(7, type);
+		frame.put(8, flags);
+		frame.putLong(9, session.nextSequence());
+		session.sign(body.bytes, 4, body.position - 4, body.bytes, body.position);
+		return frame;
+	}
+
+	// Decode the payload of one frame, checking its tag and sequence number against the session
+	public static Message decode(ByteBuffer payload, Session session) throws IOException {
+		int start = payload.position();
+		int end = payload.limit() - Session.TAG_BYTES;
+		if (end - start < HEADER - 4 || payload.getShort() != MAGIC) {
+			throw new IOException("Not a message frame");
+		}
+		byte version = payload.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported message version " + version);
+		}
+		if (!session.verify(payload.array(), payload.arrayOffset() + start, end - start, payload.arrayOffset() + end)) {
+			throw new IOException("Bad message signature");
+		}
+		payload.limit(end);
+		byte type = payload.get();
+		byte flags = payload.get();
+		long sequence = payload.getLong();
+		if (!session.accept(sequence)) {
+			throw new IOException("Replayed message " + sequence);
+		}
+		if ((flags & COMPRESSED) != 0) {
+			payload = inflate(payload);
+		}
+
+		FrameReader body = new FrameReader(payload);
+		switch (type) {
+			case HELLO:
+				return new HelloMessage(body.readBytes());
+			case REGISTER:
+				return new RegisterMessage(body.readString(), body.readString(), body.readLong(), body.readVarint(), body.readVarint());
+			case ACKNOWLEDGEMENT:
+				return new AcknowledgementMessage(body.readBytes());
+			case ASSIGNMENT:
+				return new AssignmentMessage(body.readIds());
+			case REVOKE:
+				return new RevokeMessage(body.readIds());
+			case CRAWL_RESULT:
+				long window = body.readLong();
+				CrawlResult[] results = new CrawlResult[body.readLength()];
+				for (int i = 0; i < results.length; i++) {
+					int twitterId = body.readInt();
+					ResultCode code = ResultCode.fromInt(body.readByte());
+					results[i] = new CrawlResult(twitterId, code, body.readIds());
+				}
+				return new CrawlResultMessage(results, window);
+			case FORWARD:
+				int partition = body.readVarint();
+				long batch = body.readLong();
+				int[] degrees = new int[body.readLength()];
+				int[][] ids = new int[degrees.length][];
+				for (int i = 0; i < degrees.length; i++) {
+					degrees[i] = body.readVarint();
+					ids[i] = body.readIds();
+				}
+				return new ForwardMessage(partition, batch, degrees, ids);
+			case PROBE:
+				return new ProbeMessage(body.readVarint(), body.readLong(), body.readByte() != 0);
+			case PEER_STATUS:
+				return new PeerStatusMessage(body.readLong(), body.readLong(), body.readByte() != 0, body.readLong());
+			default:
+				throw new IOException("Unknown message type " + type);
+		}
+	}
+
+	// Blocking write of one frame
+	public static void write(OutputStream out, Message m, Session session) throws IOException {
+		ByteBuffer frame = encode(m, session);
+		out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+		out.flush();
+	}
+
+	// Blocking read of one frame
+	public static Message read(DataInputStream in, Session session) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("Bad frame length " + length);
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return decode(ByteBuffer.wrap(payload), session);
+	}
+
+	// Deflate everything after the header, keeping room for the header and the uncompressed length
+	private static FrameWriter deflate(FrameWriter body) {
+		int length = body.position - HEADER;
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(body.bytes, HEADER, length);
+		deflater.finish();
+
+		FrameWriter compressed = new FrameWriter(HEADER + 4 + length / 2);
+		compressed.position = HEADER;
+		compressed.writeInt(length);
+		while (!deflater.finished()) {
+			compressed.ensure(4096);
+			compressed.position += deflater.deflate(compressed.bytes, compressed.position, compressed.bytes.length - compressed.position);
+		}
+		deflater.end();
+		return compressed;
+	}
+
+	private static ByteBuffer inflate(ByteBuffer payload) throws IOException {
+		int length = payload.getInt();
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("Bad compressed length " + length);
+		}
+		byte[] bytes = new byte[length];
+		Inflater inflater = new Inflater();
+		inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+		try {
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int count = inflater.inflate(bytes, inflated, length - inflated);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated compressed message");
+				}
+				inflated += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.toString());
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	// Testing program - bytes on the wire and encode/decode time against Java serialization
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(42);
+		CrawlResult[] results = new CrawlResult[200];
+		for (int i = 0; i < results.length; i++) {
+			int[] followers = new int[random.nextInt(20) == 0 ? 200000 : random.nextInt(2000)];
+			for (int j = 0; j < followers.length; j++) { followers[j] = random.nextInt(100000000); }
+			results[i] = new CrawlResult(random.nextInt(100000000), ResultCode.SUCCESS, followers);
+		}
+		int rounds = 20;
+
+		long begin = System.nanoTime();
+		int serializedBytes = 0;
+		for (int i = 0; i < rounds; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(new CrawlResultMessage(results, 0));
+			out.close();
+			serializedBytes = bytes.size();
+			new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		}
+		System.out.println("Serialization: " + serializedBytes + " bytes, " + (System.nanoTime() - begin) / rounds / 1000000 + " ms per round trip");
+
+		byte[] clientNonce = Session.nonce();
+		byte[] serverNonce = Session.nonce();
+		Session sender = Session.derive(Secret.SECRET, clientNonce, serverNonce, true);
+		Session receiver = Session.derive(Secret.SECRET, clientNonce, serverNonce, false);
+		begin = System.nanoTime();
+		int frameBytes = 0;
+		for (int i = 0; i < rounds; i++) {
+			ByteBuffer frame = encode(new CrawlResultMessage(results, 0), sender);
+			frameBytes = frame.remaining();
+			frame.position(4);
+			decode(frame.slice(), receiver);
+		}
+		System.out.println("MessageCodec: " + frameBytes + " bytes, " + (System.nanoTime() - begin) / rounds / 1000000 + " ms per round trip");
+	}
+}
+
+// Growable byte array the body is encoded into
+class FrameWriter {
+	byte[] bytes;
+	int position = 0;
+
+	FrameWriter(int capacity) {
+		this.bytes = new byte[capacity];
+	}
+
+	void ensure(int extra) {
+		if (this.position + extra > this.bytes.length) {
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.position + extra));
+		}
+	}
+
+	void writeByte(int value) {
+		this.ensure(1);
+		this.bytes[this.position++] = (byte)value;
+	}
+
+	void writeInt(int value) {
+		this.ensure(4);
+		this.bytes[this.position++] = (byte)(value >>> 24);
+		this.bytes[this.position++] = (byte)(value >>> 16);
+		this.bytes[this.position++] = (byte)(value >>> 8);
+		this.bytes[this.position++] = (byte)value;
+	}
+
+	void writeLong(long value) {
+		this.writeInt((int)(value >>> 32));
+		this.writeInt((int)value);
+	}
+
+	// Unsigned 32 bit varint
+	void writeVarint(int value) {
+		this.ensure(5);
+		this.putVarint(value);
+	}
+
+	// Caller has ensured room for five bytes
+	private void putVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			this.bytes[this.position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.bytes[this.position++] = (byte)value;
+	}
+
+	void writeString(String value) {
+		byte[] utf = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+		this.writeVarint(utf.length);
+		this.ensure(utf.length);
+		System.arraycopy(utf, 0, this.bytes, this.position, utf.length);
+		this.position += utf.length;
+	}
+
+	void writeBytes(byte[] value) {
+		this.writeVarint(value.length);
+		this.ensure(value.length);
+		System.arraycopy(value, 0, this.bytes, this.position, value.length);
+		this.position += value.length;
+	}
+
+	// Sort, then the first id and the gaps between ids - a gap always fits in 32 unsigned bits
+	void writeIds(int[] ids) {
+		Arrays.sort(ids);
+		this.writeVarint(ids.length);
+		if (ids.length > 0) {
+			this.writeInt(ids[0]);
+			this.ensure(ids.length * 5);
+			for (int i = 1; i < ids.length; i++) {
+				this.putVarint(ids[i] - ids[i - 1]);
+			}
+		}
+	}
+}
+
+// Reads a body written by FrameWriter
+class FrameReader {
+	private byte[] bytes;
+	private int position;
+	private int limit;
+
+	FrameReader(ByteBuffer buffer) {
+		this.bytes = buffer.array();
+		this.position = buffer.arrayOffset() + buffer.position();
+		this.limit = buffer.arrayOffset() + buffer.limit();
+	}
+
+	private void require(int count) throws IOException {
+		if (this.limit - this.position < count) {
+			throw new IOException("Truncated message");
+		}
+	}
+
+	int readByte() throws IOException {
+		this.require(1);
+		return this.bytes[this.position++];
+	}
+
+	int readInt() throws IOException {
+		this.require(4);
+		int value = ((this.bytes[this.position] & 0xFF) << 24) | ((this.bytes[this.position + 1] & 0xFF) << 16)
+			| ((this.bytes[this.position + 2] & 0xFF) << 8) | (this.bytes[this.position + 3] & 0xFF);
+		this.position += 4;
+		return value;
+	}
+
+	long readLong() throws IOException {
+		long high = this.readInt();
+		return (high << 32) | (this.readInt() & 0xFFFFFFFFL);
+	}
+
+	// Unsigned 32 bit varint
+	int readVarint() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			this.require(1);
+			byte b = this.bytes[this.position++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	// A length can never exceed what is left of the body
+	int readLength() throws IOException {
+		int length = this.readVarint();
+		if (length < 0 || length > this.limit - this.position) {
+			throw new IOException("Bad length " + length);
+		}
+		return length;
+	}
+
+	String readString() throws IOException {
+		int length = this.readLength();
+		String value = new String(this.bytes, this.position, length, java.nio.charset.StandardCharsets.UTF_8);
+		this.position += length;
+		return value;
+	}
+
+	byte[] readBytes() throws IOException {
+		byte[] value = new byte[this.readLength()];
+		System.arraycopy(this.bytes, this.position, value, 0, value.length);
+		this.position += value.length;
+		return value;
+	}
+
+	int[] readIds() throws IOException {
+		int[] ids = new int[this.readLength()];
+		if (ids.length > 0) {
+			int id = this.readInt();
+			ids[0] = id;
+			for (int i = 1; i < ids.length; i++) {
+				id += this.readVarint();
+				ids[i] = id;
+			}
+		}
+		return ids;
+	}
+}
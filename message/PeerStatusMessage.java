@@ -0,0 +1,23 @@
+package message;
+
+// A controller's answer on a peer's link - the last of the peer's forwards it has committed, and for termination
+// detection the last probe round it has seen, whether it is idle and how many forward batches it has taken in
+public class PeerStatusMessage extends Message {
+	private static final long serialVersionUID = 8157342290716634128L;
+	private long acknowledged;
+	private long round;
+	private boolean idle;
+	private long received;
+	
+	public PeerStatusMessage(long acknowledged, long round, boolean idle, long received) {
+		this.acknowledged = acknowledged;
+		this.round = round;
+		this.idle = idle;
+		this.received = received;
+	}
+	
+	public long getAcknowledged() { return this.acknowledged; }
+	public long getRound() { return this.round; }
+	public boolean isIdle() { return this.idle; }
+	public long getReceived() { return this.received; }
+}
@@ -0,0 +1,20 @@
+package message;
+
+// From a partitioned controller to a peer - opens every peer link, and asks for the peer's status for a round of
+// termination detection, or once finish is set tells the peer the crawl is over
+public class ProbeMessage extends Message {
+	private static final long serialVersionUID = -6039184752201687345L;
+	private int partition;
+	private long round;
+	private boolean finish;
+	
+	public ProbeMessage(int partition, long round, boolean finish) {
+		this.partition = partition;
+		this.round = round;
+		this.finish = finish;
+	}
+	
+	public int getPartition() { return this.partition; }
+	public long getRound() { return this.round; }
+	public boolean isFinish() { return this.finish; }
+}
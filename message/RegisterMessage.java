@@ -4,13 +4,25 @@ public class RegisterMessage extends Message {
 	private static final long serialVersionUID = -4289228394049096903L;
 	private String workerName;
 	private String username;
+	private long window;
+	private int concurrency;
+	private int requestsPerHour;
 	
-	public RegisterMessage(String key, String name, String username) {
-		super(key);
+	public RegisterMessage(String name, String username, long window, int concurrency, int requestsPerHour) {
 		this.workerName = name;
 		this.username = username;
+		this.window = window;
+		this.concurrency = concurrency;
+		this.requestsPerHour = requestsPerHour;
 	}
 	
 	public String getName() { return this.workerName; }
 	public String getUsername() { return this.username; }
+	
+	// Total number of ids the worker will accept so far
+	public long getWindow() { return this.window; }
+	
+	// Capacity - crawl tasks run at once, and the account's request quota
+	public int getConcurrency() { return this.concurrency; }
+	public int getRequestsPerHour() { return this.requestsPerHour; }
 }
@@ -0,0 +1,15 @@
+package message;
+
+// Ids the controller has taken back from a worker - the worker drops any it has not started
+public class RevokeMessage extends Message {
+	private static final long serialVersionUID = 4381926650178313467L;
+	private int[] ids;
+	
+	public RevokeMessage(int[] ids) {
+		this.ids = ids;
+	}
+	
+	public int[] getIds() {
+		return this.ids;
+	}
+}
@@ -0,0 +1,176 @@
+package message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import common.*;
+
+// Keys and sequence numbers of one connection
+// A connection opens with a hello and an acknowledgement, each carrying a random nonce and signed with the shared
+// secret, and every frame after is signed with a key derived from the secret and both nonces - so a frame taken
+// from another connection, or an earlier one, never validates
+// Each direction has its own key, HMAC(secret, "c2s" or "s2c", client nonce, server nonce), so a frame reflected back
+// to its sender does not validate either
+// Each frame carries a sequence number, and a number is accepted once and only within WINDOW of the highest seen,
+// so the receiver keeps one long of state however long the connection lives
+// Signing and verifying each have their own lock, so a send thread and a receive thread never wait on each other
+public class Session {
+	public static final int NONCE_BYTES = 16;
+	public static final int TAG_BYTES = 32;
+	private static final int WINDOW = 64;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final SecureRandom random = new SecureRandom();
+
+	private Mac signer;
+	private Mac verifier;
+	private boolean handshake;
+
+	// Last sequence number sent, and the highest received with a bit per number below it, bit 0 being highest
+	private long sent = 0;
+	private long highest = 0;
+	private long received = 0;
+
+	private Session(byte[] signKey, byte[] verifyKey, boolean handshake) {
+		this.handshake = handshake;
+		try {
+			this.signer = Mac.getInstance(ALGORITHM);
+			this.signer.init(new SecretKeySpec(signKey, ALGORITHM));
+			this.verifier = Mac.getInstance(ALGORITHM);
+			this.verifier.init(new SecretKeySpec(verifyKey, ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	// Session for the hello and acknowledgement, keyed by the shared secret alone
+	// Their sequence numbers are not checked - a replayed hello only gets a fresh nonce back, which is no use
+	// without the secret
+	public static Session handshake(String secret) {
+		byte[] key = secret.getBytes(StandardCharsets.UTF_8);
+		return new Session(key, key, true);
+	}
+
+	// Session for everything after, keyed by the secret and both sides' nonces - client is the side that sent the hello
+	public static Session derive(String secret, byte[] clientNonce, byte[] serverNonce, boolean client) {
+		byte[] clientToServer = key(secret, "c2s", clientNonce, serverNonce);
+		byte[] serverToClient = key(secret, "s2c", clientNonce, serverNonce);
+		return client ? new Session(clientToServer, serverToClient, false) : new Session(serverToClient, clientToServer, false);
+	}
+
+	private static byte[] key(String secret, String direction, byte[] clientNonce, byte[] serverNonce) {
+		Mac mac = handshake(secret).signer;
+		mac.update(direction.getBytes(StandardCharsets.UTF_8));
+		mac.update(clientNonce);
+		mac.update(serverNonce);
+		return mac.doFinal();
+	}
+
+	public static byte[] nonce() {
+		byte[] nonce = new byte[NONCE_BYTES];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	// Sequence number of the next frame sent
+	synchronized long nextSequence() {
+		return this.handshake ? 0 : ++this.sent;
+	}
+
+	// Write the tag of length bytes at offset into tag at tagOffset
+	void sign(byte[] bytes, int offset, int length, byte[] tag, int tagOffset) {
+		synchronized (this.signer) {
+			try {
+				this.signer.update(bytes, offset, length);
+				this.signer.doFinal(tag, tagOffset);
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+	}
+
+	// Check the tag at tagOffset against length bytes at offset, in constant time
+	boolean verify(byte[] bytes, int offset, int length, int tagOffset) {
+		byte[] expected;
+		synchronized (this.verifier) {
+			this.verifier.update(bytes, offset, length);
+			expected = this.verifier.doFinal();
+		}
+		int difference = 0;
+		for (int i = 0; i < TAG_BYTES; i++) {
+			difference |= expected[i] ^ bytes[tagOffset + i];
+		}
+		return (difference == 0);
+	}
+
+	// Accept a received sequence number - new and within the window - and mark it used
+	synchronized boolean accept(long sequence) {
+		if (this.handshake) {
+			return true;
+		}
+		if (sequence <= 0) {
+			return false;
+		}
+		if (sequence > this.highest) {
+			long shift = sequence - this.highest;
+			this.received = (shift >= WINDOW) ? 1 : (this.received << shift) | 1;
+			this.highest = sequence;
+			return true;
+		}
+		long offset = this.highest - sequence;
+		if (offset >= WINDOW || (this.received & (1L << offset)) != 0) {
+			return false;
+		}
+		this.received |= 1L << offset;
+		return true;
+	}
+
+	// Testing program - frames are accepted once, in or out of order within the window, and rejected when replayed,
+	// too late, tampered with, from another session or reflected back to their sender
+	public static void main(String[] args) throws Exception {
+		byte[] clientNonce = nonce();
+		byte[] serverNonce = nonce();
+		Session client = derive(Secret.SECRET, clientNonce, serverNonce, true);
+		Session server = derive(Secret.SECRET, clientNonce, serverNonce, false);
+		Session other = derive(Secret.SECRET, clientNonce, nonce(), false);
+		ByteBuffer[] frames = new ByteBuffer[100];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = MessageCodec.encode(new AssignmentMessage(new int[] { i }), client);
+		}
+		ByteBuffer tampered = MessageCodec.encode(new AssignmentMessage(new int[] { 7 }), client);
+		tampered.put(tampered.limit() - TAG_BYTES - 1, (byte)(tampered.get(tampered.limit() - TAG_BYTES - 1) ^ 1));
+		ByteBuffer answer = MessageCodec.encode(new AssignmentMessage(new int[] { 8 }), server);
+
+		boolean ok = true;
+		ok &= check("in order", frames[0], server, true);
+		ok &= check("replayed", frames[0], server, false);
+		ok &= check("skipped ahead", frames[70], server, true);
+		ok &= check("late within the window", frames[20], server, true);
+		ok &= check("late within the window, replayed", frames[20], server, false);
+		ok &= check("older than the window", frames[5], server, false);
+		ok &= check("tampered with", tampered, server, false);
+		ok &= check("from another session", frames[80], other, false);
+		ok &= check("reflected to the client", frames[81], client, false);
+		ok &= check("answer to the client", answer, client, true);
+		ok &= check("answer reflected to the server", answer, server, false);
+		System.out.println(ok ? "OK" : "FAILED");
+	}
+
+	private static boolean check(String name, ByteBuffer frame, Session session, boolean accept) {
+		ByteBuffer payload = frame.duplicate();
+		payload.position(4);
+		String outcome = "accepted";
+		try {
+			MessageCodec.decode(payload.slice(), session);
+		} catch (Exception e) {
+			outcome = e.getMessage();
+		}
+		boolean ok = (outcome.equals("accepted") == accept);
+		System.out.println(name + ": " + outcome + (ok ? "" : " - expected " + (accept ? "accepted" : "rejected")));
+		return ok;
+	}
+}
@@ -0,0 +1,71 @@
+package worker;
+
+import java.io.*;
+import java.util.*;
+
+// The API accounts one worker crawls with - one client and rate limiter per account, all sharing
+// TwitterClient's connection pool
+// Each request goes to the account with the most tokens left, so ids spread across accounts by remaining quota
+class AccountPool {
+	private ArrayList<TwitterClient> clients = new ArrayList<TwitterClient>();
+	private int next = 0;	// Round robin start, so ties do not always go to the first account
+
+	void add(String username, String password, int requestsPerHour) {
+		this.clients.add(new TwitterClient(username, password, requestsPerHour));
+	}
+
+	// Accounts file - one "username password" pair per line, # for comments
+	static AccountPool load(String fileName, int requestsPerHour) throws IOException {
+		AccountPool pool = new AccountPool();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) {
+					throw new IOException("Bad account line: " + line);
+				}
+				pool.add(fields[0], fields[1], requestsPerHour);
+			}
+		} finally {
+			reader.close();
+		}
+		if (pool.size() == 0) {
+			throw new IOException("No accounts in " + fileName);
+		}
+		return pool;
+	}
+
+	int size() { return this.clients.size(); }
+
+	// Account names, comma separated, for registration and logs
+	String usernames() {
+		StringBuilder names = new StringBuilder();
+		for (TwitterClient client : this.clients) {
+			if (names.length() > 0) names.append(',');
+			names.append(client.getUsername());
+		}
+		return names.toString();
+	}
+
+	// The client with the most tokens available
+	synchronized TwitterClient next() {
+		TwitterClient best = null;
+		double bestAvailable = 0;
+		int count = this.clients.size();
+		for (int i = 0; i < count; i++) {
+			TwitterClient client = this.clients.get((this.next + i) % count);
+			double available = client.getLimiter().available();
+			if (best == null || available > bestAvailable) {
+				best = client;
+				bestAvailable = available;
+			}
+		}
+		this.next = (this.next + 1) % count;
+		return best;
+	}
+}
@@ -2,78 +2,169 @@ package worker;
 
 import common.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
-public class CrawlTask implements Runnable {
+// Crawls the followers of one id as a chain of page requests - each response schedules the next request,
+// so no thread is held while a page is in flight
+// Every page goes to whichever account has the most quota left, and its rate limiter paces the request,
+// so there is no sleeping between pages here
+// Once page 1 comes back full, later pages are fetched in parallel - the window grows with each page received,
+// up to PAGE_PARALLELISM, so small accounts waste few requests past their last page
+// Pages are reassembled in order, and followers of large accounts are handed on in PARTIAL chunks as they arrive,
+// so memory is bounded by the chunk size, and the final SUCCESS result carries whatever is left
+// A page that fails with a 5xx or transport error is retried after an exponential backoff with full jitter, on a
+// delayed executor, so a struggling server is not hit again at once by every task that saw the error
+public class CrawlTask {
 	private int twitterId;
-	private CrawlResult result = null;
-	private String username;
-	private String password;
-	private volatile boolean crawled = false;
+	private AccountPool accounts;
 	private volatile boolean finished = false;
 	private int failCount = 0;
 	
 	private int MAX_FAILS = 8;
+	private long RETRY_BASE_MILLIS = 500;
+	private long RETRY_MAX_MILLIS = 30000;
 	private int PAGE_SIZE = 5000;
+	private int CHUNK_SIZE = 50000;
+	private int PAGE_PARALLELISM = Integer.getInteger("crawl.pageParallelism", 8);
 	
-	public CrawlTask(int twitterId, String username, String password) {
+	// Page window - responses arrive on client threads, so all of this is guarded by the task's lock
+	private int nextPage = 1;			// Next page to request
+	private int lastPage = Integer.MAX_VALUE;	// The empty page marking the end, once seen
+	private int inFlight = 0;
+	private int received = 0;
+	private TreeMap<Integer, int[]> arrived = new TreeMap<Integer, int[]>();	// Out of order pages
+	private int nextAssembled = 1;
+	
+	// Pages assembled since the last chunk, where chunks go, and the future completed with the result
+	private LinkedList<int[]> pages = new LinkedList<int[]>();
+	private int idCount = 0;
+	private Consumer<CrawlResult> chunks;
+	private CompletableFuture<CrawlResult> future = new CompletableFuture<CrawlResult>();
+	
+	public CrawlTask(int twitterId, AccountPool accounts) {
 		this.twitterId = twitterId;
-		this.username = username;
-		this.password = password;
+		this.accounts = accounts;
 	}
 	
 	public int getTwitterId() { return this.twitterId; }
-	public CrawlResult getResult() { return this.result; }
-	public boolean isFinished() { return this.finished; }
 	
-	public void run() {		
-		TwitterClient client = new TwitterClient(this.username, this.password);
-		int page = 1;
-		LinkedList<Integer> idList = new LinkedList<Integer>();
-		
-		// Not finished before this point
+	// Start crawling - partial chunks are passed to chunks in order, and the future completes normally with the final result
+	public CompletableFuture<CrawlResult> start(Consumer<CrawlResult> chunks) {
+		synchronized (this) {
+			this.chunks = chunks;
+			this.fetch(this.nextPage++);
+		}
+		return this.future;
+	}
+	
+	private void fetch(final int page) {
+		this.inFlight++;
+		this.request(page);
+	}
+	
+	private void request(final int page) {
+		this.accounts.next().getFollowersIDsAsync(this.twitterId, page).thenAccept(p -> this.receive(page, p));
+	}
+	
+	// Request more pages while the window has room - pages waiting for reassembly count against it
+	private void fill() {
+		int window = Math.min(PAGE_PARALLELISM, this.received);
+		while (this.inFlight + this.arrived.size() < window && this.nextPage <= this.lastPage) {
+			this.fetch(this.nextPage++);
+		}
+	}
+	
+	// Handle one page, then fetch more, retry, or finish
+	private synchronized void receive(int page, FollowersPage followersPage) {
+		this.inFlight--;
+		if (this.finished) {
+			return;
+		}
 		try {
-			while (!this.crawled) {
-				if (this.failCount > MAX_FAILS) {
-					this.result = new CrawlResult(this.twitterId, ResultCode.FAILED);
-					this.crawled = true;
+			if (followersPage.isOk()) {
+				int[] ids = followersPage.getIds();
+				this.received++;
+				if ((ids.length < PAGE_SIZE && page == 1) || (ids.length == 0)) {
+					this.lastPage = Math.min(this.lastPage, page);
+				}
+				if (page <= this.lastPage) {
+					this.arrived.put(page, ids);
+				}
+				this.assemble();
+				if (this.nextAssembled > this.lastPage) {
+					this.finish(new CrawlResult(this.twitterId, ResultCode.SUCCESS, this.drain()));
 				} else {
-					LinkedList<Integer> followersPage = new LinkedList<Integer>();
-					int responseCode = client.getFollowersIDs(this.twitterId, page, followersPage);
-					if (responseCode == 200) {
-						idList.addAll(followersPage);
-						if ((followersPage.size() < PAGE_SIZE && page == 1) || (followersPage.size() == 0)) {
-							this.crawled = true;
-						} else {
-							page++;
-							Thread.sleep(200); 
-						}
-					} else {
-						switch (responseCode) {
-							case 400 : Thread.sleep(1000); this.failCount++; break; 
-							case 401 : this.result = new CrawlResult(this.twitterId, ResultCode.NOT_AUTHORIZED); this.crawled = true; break;
-							case 403 : this.result = new CrawlResult(this.twitterId, ResultCode.INVALID_ACCOUNT); this.crawled = true; break;
-							case 404 : this.result = new CrawlResult(this.twitterId, ResultCode.NOT_FOUND); this.crawled = true; break;
-							default: this.failCount++; break;
-						}
-					}
+					this.fill();
+				}
+			} else if (page > this.lastPage) {
+				// Past the end anyway
+			} else {
+				switch (followersPage.getStatusCode()) {
+					case 401 : this.finish(new CrawlResult(this.twitterId, ResultCode.NOT_AUTHORIZED)); break;
+					case 403 : this.finish(new CrawlResult(this.twitterId, ResultCode.INVALID_ACCOUNT)); break;
+					case 404 : this.finish(new CrawlResult(this.twitterId, ResultCode.NOT_FOUND)); break;
+					default: this.retry(page); break;
 				}
 			}
 		} catch (Exception e) {
 			System.out.println("Unexpected exception for " + this.twitterId + ": " + e);
-			System.out.println(e);
+			this.finish(new CrawlResult(this.twitterId, ResultCode.FAILED));
 		}
+	}
 	
-		// Must be crawled at this point
-		// If no fails yet, create the success result
-		if (this.result == null) {
-			int[] followers = new int[idList.size()];
-			for (int i = 0; i < followers.length; i++) {
-				followers[i] = idList.removeFirst();
+	// Fetch the page again after a random delay of up to RETRY_BASE_MILLIS doubled per failure so far
+	// The page counts as in flight meanwhile, so the window does not refill past it
+	private void retry(final int page) {
+		this.failCount++;
+		if (this.failCount > MAX_FAILS) {
+			this.finish(new CrawlResult(this.twitterId, ResultCode.FAILED));
+			return;
+		}
+		long backoff = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << (this.failCount - 1));
+		long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+		this.inFlight++;
+		CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(new Runnable() {
+			public void run() {
+				synchronized (CrawlTask.this) {
+					if (finished) {
+						inFlight--;
+					} else {
+						request(page);
+					}
+				}
 			}
-			this.result = new CrawlResult(this.twitterId, ResultCode.SUCCESS, followers);
+		});
+	}
+	
+	// Move pages that are next in order onto the assembled list, handing on a chunk when enough are held
+	private void assemble() {
+		while (this.arrived.size() > 0 && this.arrived.firstKey() == this.nextAssembled) {
+			int[] ids = this.arrived.pollFirstEntry().getValue();
+			this.pages.add(ids);
+			this.idCount += ids.length;
+			this.nextAssembled++;
+		}
+		if (this.idCount >= CHUNK_SIZE && this.nextAssembled <= this.lastPage) {
+			this.chunks.accept(new CrawlResult(this.twitterId, ResultCode.PARTIAL, this.drain()));
 		}
-		
-		// Finished and ready for results retrieval
+	}
+	
+	// Concatenate and clear the pages held
+	private int[] drain() {
+		int[] followers = new int[this.idCount];
+		int offset = 0;
+		for (int[] ids : this.pages) {
+			System.arraycopy(ids, 0, followers, offset, ids.length);
+			offset += ids.length;
+		}
+		this.pages.clear();
+		this.idCount = 0;
+		return followers;
+	}
+	
+	private void finish(CrawlResult result) {
 		this.finished = true;
+		this.future.complete(result);
 	}
 }
@@ -0,0 +1,12 @@
+package worker;
+
+import java.util.concurrent.*;
+
+// HttpClient callback threads should not keep the worker alive
+class DaemonThreadFactory implements ThreadFactory {
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, "twitter-client");
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,171 @@
+package worker;
+
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import org.json.simple.*;
+
+// Streaming parser for a JSON array of follower ids, fed the response bytes as they arrive
+// Digits go straight into a pooled int buffer - ids that do not fit in a positive int are skipped,
+// and anything other than an array of plain integers is rejected
+class FollowerIdParser implements Flow.Subscriber<List<ByteBuffer>> {
+	private static final int PAGE_SIZE = 5000;
+	private static final int MAX_DIGITS = 10;
+	private static ConcurrentLinkedQueue<int[]> buffers = new ConcurrentLinkedQueue<int[]>();
+
+	// Parser states
+	private static final int BEFORE_ARRAY = 0;
+	private static final int IN_ARRAY = 1;
+	private static final int DONE = 2;
+	private static final int MALFORMED = 3;
+
+	private int state = BEFORE_ARRAY;
+	private int[] ids;
+	private int count = 0;
+
+	// Number being read - digits seen, and its value so far
+	private int digits = 0;
+	private long value = 0;
+	private boolean expectValue = true;
+
+	FollowerIdParser() {
+		this.ids = buffers.poll();
+		if (this.ids == null) {
+			this.ids = new int[PAGE_SIZE];
+		}
+	}
+
+	// Body handler - 200 responses are parsed as they stream in, others are discarded
+	static HttpResponse.BodyHandler<int[]> bodyHandler() {
+		return new HttpResponse.BodyHandler<int[]>() {
+			public HttpResponse.BodySubscriber<int[]> apply(HttpResponse.ResponseInfo info) {
+				if (info.statusCode() != 200) {
+					return HttpResponse.BodySubscribers.replacing(null);
+				}
+				final FollowerIdParser parser = new FollowerIdParser();
+				return HttpResponse.BodySubscribers.fromSubscriber(parser, p -> p.result());
+			}
+		};
+	}
+
+	// Parse a complete body
+	static int[] parse(byte[] body) {
+		FollowerIdParser parser = new FollowerIdParser();
+		parser.feed(ByteBuffer.wrap(body));
+		return parser.result();
+	}
+
+	public void onSubscribe(Flow.Subscription subscription) {
+		subscription.request(Long.MAX_VALUE);
+	}
+
+	public void onNext(List<ByteBuffer> items) {
+		for (ByteBuffer item : items) {
+			this.feed(item);
+		}
+	}
+
+	public void onError(Throwable throwable) {
+		this.state = MALFORMED;
+	}
+
+	public void onComplete() {}
+
+	// The ids, or null if the body was not a complete array - the pooled buffer goes back either way
+	int[] result() {
+		int[] retval = (this.state == DONE) ? Arrays.copyOf(this.ids, this.count) : null;
+		if (this.ids != null) {
+			buffers.offer(this.ids);
+			this.ids = null;
+		}
+		return retval;
+	}
+
+	private void feed(ByteBuffer bytes) {
+		while (bytes.hasRemaining() && this.state < DONE) {
+			byte b = bytes.get();
+			if (this.state == BEFORE_ARRAY) {
+				if (b == '[') {
+					this.state = IN_ARRAY;
+				} else if (!isSpace(b)) {
+					this.state = MALFORMED;
+				}
+			} else if (b >= '0' && b <= '9') {
+				if (!this.expectValue) {
+					this.state = MALFORMED;
+				} else if (++this.digits <= MAX_DIGITS) {
+					this.value = this.value * 10 + (b - '0');
+				}
+			} else if (b == ',' || b == ']' || isSpace(b)) {
+				this.endNumber();
+				if (b == ',') {
+					this.state = (this.expectValue) ? MALFORMED : this.state;
+					this.expectValue = true;
+				} else if (b == ']') {
+					this.state = DONE;
+				}
+			} else {
+				this.state = MALFORMED;
+			}
+		}
+	}
+
+	// Store the number just read, skipping any too large for an int
+	private void endNumber() {
+		if (this.digits > 0) {
+			if (this.digits <= MAX_DIGITS && this.value <= Integer.MAX_VALUE) {
+				if (this.count == this.ids.length) {
+					this.ids = Arrays.copyOf(this.ids, this.ids.length * 2);
+				}
+				this.ids[this.count++] = (int)this.value;
+			}
+			this.digits = 0;
+			this.value = 0;
+			this.expectValue = false;
+		}
+	}
+
+	private static boolean isSpace(byte b) {
+		return (b == ' ' || b == '\n' || b == '\r' || b == '\t');
+	}
+
+	// Testing program - against the old json-simple path on realistic 5000 id pages
+	public static void main(String[] args) {
+		Random random = new Random(42);
+		byte[][] pages = new byte[20][];
+		for (int p = 0; p < pages.length; p++) {
+			StringBuilder page = new StringBuilder("[");
+			for (int i = 0; i < PAGE_SIZE; i++) {
+				if (i > 0) page.append(',');
+				page.append(random.nextInt(i % 100 == 0 ? Integer.MAX_VALUE : 120000000));
+			}
+			pages[p] = page.append(']').toString().getBytes();
+		}
+		int rounds = 2000;
+
+		for (int pass = 0; pass < 2; pass++) {
+			long begin = System.nanoTime();
+			long total = 0;
+			for (int r = 0; r < rounds; r++) {
+				JSONArray array = (JSONArray)JSONValue.parse(new String(pages[r % pages.length]));
+				LinkedList<Integer> ids = new LinkedList<Integer>();
+				for (int i = 0; i < array.size(); i ++) {
+					String intString = array.get(i).toString();
+					if (intString.length() < 11) {
+						ids.add(Integer.parseInt(intString));
+					}
+				}
+				total += ids.size();
+			}
+			System.out.println("json-simple: " + (System.nanoTime() - begin) / rounds / 1000 + " us per page (" + total + " ids)");
+
+			begin = System.nanoTime();
+			total = 0;
+			for (int r = 0; r < rounds; r++) {
+				total += parse(pages[r % pages.length]).length;
+			}
+			System.out.println("FollowerIdParser: " + (System.nanoTime() - begin) / rounds / 1000 + " us per page (" + total + " ids)");
+		}
+	}
+}
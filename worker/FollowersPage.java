@@ -0,0 +1,20 @@
+package worker;
+
+// One page of follower ids, or the status code explaining why there is none
+class FollowersPage {
+	private int statusCode;
+	private int[] ids;
+	
+	FollowersPage(int statusCode, int[] ids) {
+		this.statusCode = statusCode;
+		this.ids = ids;
+	}
+	
+	FollowersPage(int statusCode) {
+		this(statusCode, new int[] {});
+	}
+	
+	public int getStatusCode() { return this.statusCode; }
+	public int[] getIds() { return this.ids; }
+	public boolean isOk() { return this.statusCode == 200; }
+}
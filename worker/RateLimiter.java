@@ -0,0 +1,172 @@
+package worker;
+
+import java.net.http.HttpHeaders;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Token bucket shared by every request made with one account
+// Waiters are parked as futures and released by a timer thread, so no thread sleeps waiting for a token
+// The refill rate halves on a rate-limit response, creeps back up on success,
+// and never exceeds what the server's rate-limit headers say is left of the quota
+// Up to 64 requests can be in flight per account, so one burst of rejections is answered by one cut - after a cut
+// the rate holds for CUT_HOLD, long enough for every request sent before it to come back, or until Retry-After
+class RateLimiter {
+	private static HashMap<String, RateLimiter> accounts = new HashMap<String, RateLimiter>();	// Explicitly synchronize
+	private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+	static final int BURST = 10;		// Requests an account lets out at once
+	private double RECOVERY = 0.05;	// Fraction of the nominal rate regained per successful request
+	private double FLOOR = 1.0 / 64;	// Lowest rate as a fraction of the nominal rate
+	private long CUT_HOLD = 60000;		// The request timeout - no response comes later than this
+
+	// Rates in tokens per millisecond - tokens go negative to hold back a Retry-After
+	private double nominalRate;
+	private double ceiling;
+	private double rate;
+	private double tokens;
+	private long lastRefill;
+	private long holdUntil = 0;		// No further cut before this
+
+	private LinkedList<CompletableFuture<Void>> waiters = new LinkedList<CompletableFuture<Void>>();
+	private boolean drainScheduled = false;
+
+	RateLimiter(int requestsPerHour) {
+		this.nominalRate = requestsPerHour / 3600000.0;
+		this.ceiling = this.nominalRate;
+		this.rate = this.nominalRate;
+		this.tokens = BURST;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	// The limiter for an account, shared by every client using it
+	static RateLimiter forAccount(String username, int requestsPerHour) {
+		synchronized (accounts) {
+			RateLimiter limiter = accounts.get(username);
+			if (limiter == null) {
+				limiter = new RateLimiter(requestsPerHour);
+				accounts.put(username, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	// Completes when a token has been taken
+	CompletableFuture<Void> acquire() {
+		synchronized (this) {
+			this.refill();
+			if (this.waiters.size() == 0 && this.tokens >= 1) {
+				this.tokens -= 1;
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+			this.waiters.add(waiter);
+			this.scheduleDrain();
+			return waiter;
+		}
+	}
+
+	// Tokens available right now, for picking between accounts
+	synchronized double available() {
+		this.refill();
+		return this.tokens - this.waiters.size();
+	}
+
+	// Adjust to a response - status and rate-limit headers
+	synchronized void observe(int statusCode, HttpHeaders headers) {
+		this.refill();
+
+		// Remaining quota until the reset time caps the rate
+		long remaining = number(headers, "X-RateLimit-Remaining");
+		long reset = number(headers, "X-RateLimit-Reset");
+		if (remaining >= 0 && reset > 0) {
+			long untilReset = Math.max(1000, reset * 1000 - System.currentTimeMillis());
+			this.ceiling = Math.min(this.nominalRate, Math.max(this.nominalRate * FLOOR, remaining / (double)untilReset));
+			if (remaining == 0) {
+				this.tokens = Math.min(this.tokens, -this.ceiling * untilReset);
+			}
+		}
+
+		if (statusCode == 400 || statusCode == 429) {
+			// Hold back for Retry-After at the rate the server rejected, then cut it once per burst
+			long retryAfter = retryAfter(headers) * 1000;
+			this.tokens = Math.min(this.tokens, -this.rate * retryAfter);
+			long now = System.currentTimeMillis();
+			if (now >= this.holdUntil) {
+				this.rate = Math.max(this.rate / 2, this.nominalRate * FLOOR);
+				this.holdUntil = now + Math.max(CUT_HOLD, retryAfter);
+			}
+		} else if (statusCode > 0) {
+			this.rate = Math.min(this.rate + this.nominalRate * RECOVERY, this.ceiling);
+		}
+		this.rate = Math.min(this.rate, this.ceiling);
+	}
+
+	// A header as a non-negative number, or -1 if it is missing or not a number
+	private static long number(HttpHeaders headers, String name) {
+		Optional<String> value = headers.firstValue(name);
+		if (!value.isPresent()) {
+			return -1;
+		}
+		try {
+			return Math.max(-1, Long.parseLong(value.get().trim()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Seconds to hold back from Retry-After, which is either a number of seconds or an HTTP-date - 0 if neither
+	private static long retryAfter(HttpHeaders headers) {
+		long seconds = number(headers, "Retry-After");
+		if (seconds >= 0) {
+			return seconds;
+		}
+		Optional<String> value = headers.firstValue("Retry-After");
+		if (!value.isPresent()) {
+			return 0;
+		}
+		try {
+			Instant date = ZonedDateTime.parse(value.get().trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+			return Math.max(0, Duration.between(Instant.now(), date).getSeconds());
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	private void refill() {
+		long now = System.currentTimeMillis();
+		this.tokens = Math.min(BURST, this.tokens + (now - this.lastRefill) * this.rate);
+		this.lastRefill = now;
+	}
+
+	// Wake up when the next waiter's token will be there
+	private void scheduleDrain() {
+		if (!this.drainScheduled) {
+			this.drainScheduled = true;
+			long delay = (long)Math.ceil(Math.max(0, 1 - this.tokens) / this.rate);
+			timer.schedule(new Runnable() {
+				public void run() { drain(); }
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Hand out tokens to waiters, completing them outside the lock
+	private void drain() {
+		LinkedList<CompletableFuture<Void>> ready = new LinkedList<CompletableFuture<Void>>();
+		synchronized (this) {
+			this.drainScheduled = false;
+			this.refill();
+			while (this.waiters.size() > 0 && this.tokens >= 1) {
+				this.tokens -= 1;
+				ready.add(this.waiters.removeFirst());
+			}
+			if (this.waiters.size() > 0) {
+				this.scheduleDrain();
+			}
+		}
+		for (CompletableFuture<Void> waiter : ready) {
+			waiter.complete(null);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package worker;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+// Stand-in for followers/ids.json, so workers can crawl on loopback - point them at it with -Dtwitter.api
+// Every account has a fixed set of followers drawn from its id, about 25 on average out of 2 * idRange ids,
+// one in 97 answers 404, and with bigAccountSize one in 50 has that many followers over several pages
+// Each request takes LATENCY_MILLIS, like a remote server would
+public class StubTwitterApi {
+	private static final int PAGE_SIZE = 5000;
+	private static final int LATENCY_MILLIS = 20;
+	private static final int THREADS = 16;
+
+	// Serve on port until the process exits - a small idRange makes a graph a crawl can finish
+	public static HttpServer start(int port, final int bigAccountSize, final int idRange) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 100);
+		server.createContext("/followers/ids.json", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, bigAccountSize, idRange);
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory()));
+		server.start();
+		return server;
+	}
+
+	private static void serve(HttpExchange exchange, int bigAccountSize, int idRange) throws IOException {
+		HashMap<String, String> query = new HashMap<String, String>();
+		for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+			String[] parts = pair.split("=");
+			query.put(parts[0], parts[1]);
+		}
+		int userId = Integer.parseInt(query.get("user_id"));
+		int page = Integer.parseInt(query.get("page"));
+		int code = (userId % 97 == 0) ? 404 : 200;
+
+		// Pages start at one, and a page past the end is an empty list
+		int total = (bigAccountSize > 0 && userId % 50 == 1) ? bigAccountSize : (new Random(userId)).nextInt(50);
+		int from = (page - 1) * PAGE_SIZE;
+		int to = Math.min(total, page * PAGE_SIZE);
+		StringBuilder body = new StringBuilder("[");
+		for (int i = from; i < to; i++) {
+			if (i > from) {
+				body.append(',');
+			}
+			body.append((userId * 31 + i * 7919) % idRange + ((i % 3 == 0) ? 100000 : 0));
+		}
+		body.append("]");
+		byte[] bytes = body.toString().getBytes();
+
+		try {
+			Thread.sleep(LATENCY_MILLIS);
+		} catch (InterruptedException e) {}
+		exchange.sendResponseHeaders(code, (code == 200) ? bytes.length : -1);
+		if (code == 200) {
+			exchange.getResponseBody().write(bytes);
+		}
+		exchange.close();
+	}
+
+	// Testing program
+	// Usage: StubTwitterApi port [bigAccountSize] [idRange]
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: port [bigAccountSize] [idRange]");
+			return;
+		}
+		start(Integer.parseInt(args[0]), (args.length > 1) ? Integer.parseInt(args[1]) : 0, (args.length > 2) ? Integer.parseInt(args[2]) : 20000);
+		System.out.println("Serving followers/ids.json on port " + args[0]);
+		try {
+			Thread.currentThread().join();
+		} catch (InterruptedException e) {}
+	}
+}
@@ -2,58 +2,110 @@ package worker;
 
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.time.Duration;
 import java.util.*;
-import org.json.simple.*;
+import java.util.concurrent.*;
 
+// Asynchronous Twitter API client
+// Every client shares one HttpClient, so keep-alive connections are pooled across tasks and accounts,
+// and at most MAX_CONNECTIONS requests are on the wire at once - the rest wait without holding a thread
+// The API base URL comes from -Dtwitter.api, so a worker can be pointed at a local stub
+// Pages are parsed by FollowerIdParser as the body streams in
+// Every request first takes a token from its account's RateLimiter, which also sees every response
 class TwitterClient {
+	private static final String BASE_URL = System.getProperty("twitter.api", "http://www.twitter.com");
+	private static final int MAX_CONNECTIONS = 64;
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+	private static final HttpClient http = HttpClient.newBuilder()
+		.version(HttpClient.Version.HTTP_1_1)
+		.connectTimeout(REQUEST_TIMEOUT)
+		.executor(Executors.newFixedThreadPool(4, new DaemonThreadFactory()))
+		.build();
+
+	// Connection permits, and requests waiting for one
+	private static final Object permitLock = new Object();
+	private static int inFlight = 0;
+	private static LinkedList<CompletableFuture<Void>> waiting = new LinkedList<CompletableFuture<Void>>();
+
 	private String username;
-	private String password;
-	private String encodedAuth;
-	
-	public TwitterClient(String username, String password) {
+	private String baseUrl;
+	private String authorization;
+	private RateLimiter limiter;
+
+	public TwitterClient(String username, String password, int requestsPerHour) {
+		this(username, password, requestsPerHour, BASE_URL);
+	}
+
+	public TwitterClient(String username, String password, int requestsPerHour, String baseUrl) {
 		this.username = username;
-		this.password = password;
-		String auth = this.username + ":" + this.password;
-		this.encodedAuth = (new sun.misc.BASE64Encoder()).encode(auth.getBytes());
+		this.baseUrl = baseUrl;
+		this.limiter = RateLimiter.forAccount(username, requestsPerHour);
+		String auth = username + ":" + password;
+		this.authorization = "Basic " + Base64.getEncoder().encodeToString(auth.getBytes());
 	}
-	
-	public int getFollowersIDs(int userId, int page, List<Integer> aggregator) {
-		int statusCode = 0;
-		HttpURLConnection conn = null;
-		try {
-			URL url = new URL("http://www.twitter.com/followers/ids.json?page=" + page + "&user_id=" + userId);
-			conn = (HttpURLConnection)url.openConnection();
-			conn.setRequestProperty("Authorization", "Basic " + this.encodedAuth);
-			conn.connect();
-		
-			statusCode = conn.getResponseCode();
-			if (statusCode == HttpURLConnection.HTTP_OK) {
-				JSONArray array = (JSONArray)JSONValue.parse(new InputStreamReader(conn.getInputStream()));
-				if (array != null) {
-					for (int i = 0; i < array.size(); i ++) {
-						String intString = array.get(i).toString();
-						if (intString.length() < 11) {
-							Integer followerId = Integer.parseInt(array.get(i).toString());
-							aggregator.add(followerId);
-						}
-					}
+
+	// Fetch and parse one page - the future always completes normally, with status 0 on a transport error
+	public CompletableFuture<FollowersPage> getFollowersIDsAsync(final int userId, final int page) {
+		final HttpRequest request = HttpRequest.newBuilder()
+			.uri(URI.create(this.baseUrl + "/followers/ids.json?page=" + page + "&user_id=" + userId))
+			.header("Authorization", this.authorization)
+			.timeout(REQUEST_TIMEOUT)
+			.GET()
+			.build();
+
+		return this.limiter.acquire()
+			.thenCompose(ignored -> acquire())
+			.thenCompose(ignored -> http.sendAsync(request, FollowerIdParser.bodyHandler()))
+			.handle((response, error) -> {
+				release();
+				if (error != null) {
+					System.out.println("Code 0 for " + userId + " page " + page + ": " + error);
+					return new FollowersPage(0);
 				}
-			} 
-		} catch (IOException e) {
-			System.out.println("Code " + statusCode + " for " + userId + ": " + e);
-			if (statusCode == 0) e.printStackTrace();
-		} catch (Exception e) {
-			System.out.println("Unexpected exception with code " + statusCode + " for " + userId + " page " + page + ": " + e);
-			e.printStackTrace();
-			statusCode = 0;
-		} finally {
-			if (conn != null) {
-				try {
-					conn.disconnect();
-					conn.getInputStream().close();
-				} catch (Exception e) {}
+				this.limiter.observe(response.statusCode(), response.headers());
+				return parse(response, userId, page);
+			});
+	}
+	
+	public String getUsername() { return this.username; }
+	public RateLimiter getLimiter() { return this.limiter; }
+
+	private static FollowersPage parse(HttpResponse<int[]> response, int userId, int page) {
+		int statusCode = response.statusCode();
+		if (statusCode != HttpURLConnection.HTTP_OK) {
+			return new FollowersPage(statusCode);
+		} else if (response.body() == null) {
+			System.out.println("Malformed body with code " + statusCode + " for " + userId + " page " + page);
+			return new FollowersPage(0);
+		}
+		return new FollowersPage(statusCode, response.body());
+	}
+
+	// Take a connection permit, or queue for the next one released
+	private static CompletableFuture<Void> acquire() {
+		synchronized (permitLock) {
+			if (inFlight < MAX_CONNECTIONS) {
+				inFlight++;
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> permit = new CompletableFuture<Void>();
+			waiting.add(permit);
+			return permit;
+		}
+	}
+
+	// Hand the permit straight to the next waiter, if any
+	private static void release() {
+		CompletableFuture<Void> next;
+		synchronized (permitLock) {
+			if (waiting.size() == 0) {
+				inFlight--;
+				return;
 			}
+			next = waiting.removeFirst();
 		}
-		return statusCode;
+		next.complete(null);
 	}
 }
@@ -9,53 +9,68 @@ import common.*;
 
 // Multithreading considerations
 // in, out accessed only by ReceiveThread, SendThread respectively
-// usedPads accessed by SendThread, ReceiveThread
-// inQueue, outQueue accessed by main thread and ReceiveThread, main thread and SendThread respectively
-// threadPool, tasks accessed only by main thread
+// session signs on SendThread and verifies on ReceiveThread, each under its own lock
+// inQueue accessed by main thread and ReceiveThread
+// outQueue, crawlCount and revokedCount accessed by task completions, ReceiveThread and SendThread, under the outQueue lock
+// Tasks run as chains of asynchronous requests - the main thread only dispatches ids while a slot is free,
+// and each task hands its result to the send thread the moment it completes
 public class Worker {
 	private String hostName;
 	private int hostPort;
 	private boolean connected = false;
-	private String username;
-	private String password;
-	private long crawlCount = 0;
+	private AccountPool accounts;
+	private volatile long crawlCount = 0;
+	private long revokedCount = 0;		// Revoked before they started - counted in the window like crawled ids
+	private boolean windowChanged = false;	// Under the outQueue lock - send the window even without results
 	
-	// Speed / thread limits
-	private int MAX_CONCURRENCY = 40;
-	private int REQUESTS_PER_HOUR = 18000;
-	private int SLEEP_INTERVAL = Math.round((float)3600000 / (float)REQUESTS_PER_HOUR);
+	// Speed / concurrency limits - tasks hold no thread while waiting, so thousands can be in flight
+	// The controller is told the concurrency the accounts can use, so throughput rather than this cap sizes batches
+	private int MAX_CONCURRENCY = Integer.getInteger("worker.concurrency", 2000);
+	private static int REQUESTS_PER_HOUR = 18000;	// Per account
+	
+	// Ids we are willing to hold beyond those completed - about two batches, so the next is always here
+	private int WINDOW = Math.max(4000, 2 * MAX_CONCURRENCY);
 	
 	// Connection details
 	private Socket socket;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
-	private volatile boolean sending = false;
+	private DataInputStream in;
+	private DataOutputStream out;
 	
-	// Message validation
-	private HashSet<String> usedPads = new HashSet<String>();
+	// Session opened by the handshake - every frame after it is signed and sequenced
+	private Session session;
 	
 	// Message queues
 	private LinkedList<Integer> inQueue = new LinkedList<Integer>();
 	private LinkedList<CrawlResult> outQueue = new LinkedList<CrawlResult>();
 		
-	// Thread pool
-	private ExecutorService threadPool = Executors.newFixedThreadPool(40);
-	private LinkedList<CrawlTask> tasks = new LinkedList<CrawlTask>();
+	// Receive and send threads, and task slots
+	private ExecutorService threadPool = Executors.newFixedThreadPool(2);
+	private Semaphore slots = new Semaphore(MAX_CONCURRENCY);
 	
 	// Status log
 	private Logger statusLog;
 	
 	// Constructor
 	public Worker(String name, int port, String username, String password) {
+		this(name, port, new AccountPool());
+		this.accounts.add(username, password, REQUESTS_PER_HOUR);
+	}
+	
+	// All accounts are registered together as one worker, with their quotas summed
+	Worker(String name, int port, AccountPool accounts) {
 		this.hostName = name;
 		this.hostPort = port;
-		this.username = username;
-		this.password = password;
+		this.accounts = accounts;
 		this.statusLog = new Logger("worker_log.txt");
 	}
 	
 	// Get the count
 	public long getCount() { return this.crawlCount; }
+	
+	// Tasks the accounts keep busy - each rate limiter lets out a burst at once, and more tasks only wait for tokens
+	private int concurrency() {
+		return Math.min(MAX_CONCURRENCY, this.accounts.size() * RateLimiter.BURST);
+	}
 
 	// Connect function
 	private void connect() {
@@ -64,22 +79,22 @@ public class Worker {
 			this.socket = new Socket(this.hostName, this.hostPort);		
 			this.socket.setSoTimeout(Timeout.TIMEOUT);
 			
-			this.out = new ObjectOutputStream(this.socket.getOutputStream());
-			this.in = new ObjectInputStream(this.socket.getInputStream());
-			
-			// Send a register message
-			this.out.writeObject(new RegisterMessage(Secret.SECRET, InetAddress.getLocalHost().getHostAddress(), this.username));
-			this.out.flush();
+			this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
 			
-			// Wait for an acknowledgement
-			Object o = this.in.readObject();
+			// Send a hello and wait for the acknowledgement - their nonces key the session
+			byte[] nonce = Session.nonce();
+			Session handshake = Session.handshake(Secret.SECRET);
+			MessageCodec.write(this.out, new HelloMessage(nonce), handshake);
+			Message o = MessageCodec.read(this.in, handshake);
 			if (!(o instanceof AcknowledgementMessage)) {
 				throw new RuntimeException("Not a response message");
-			} else if (!this.validate((AcknowledgementMessage)o)) {
-				throw new RuntimeException("Invalid message");
-			} else {
-				this.connected = true;
 			}
+			this.session = Session.derive(Secret.SECRET, nonce, ((AcknowledgementMessage)o).getNonce(), true);
+			
+			// Send a register message
+			MessageCodec.write(this.out, new RegisterMessage(InetAddress.getLocalHost().getHostAddress(), this.accounts.usernames(), WINDOW, this.concurrency(), REQUESTS_PER_HOUR * this.accounts.size()), this.session);
+			this.connected = true;
 		} catch (Exception e) {
 			try {
 				this.statusLog.logError(e.toString());
@@ -90,44 +105,68 @@ public class Worker {
 		}		
 	}
 	
-	// Read in message, put ids on queue - receive thread
-	public void receiveIds() throws IOException, ClassNotFoundException {
-		if (!this.sending) {
-			Object o = this.in.readObject();
-			if (o instanceof AssignmentMessage && this.validate((Message)o)) {
-				AssignmentMessage am = (AssignmentMessage)o;
-				int[] ids = am.getIds();
-				synchronized(this.inQueue) {
-					for (int id : ids) { 
-						this.inQueue.add(id); 
-					}
+	// Read in message, put ids on queue or drop revoked ones - receive thread
+	public void receiveIds() throws IOException {
+		Message o = MessageCodec.read(this.in, this.session);
+		if (o instanceof RevokeMessage) {
+			this.revoke(((RevokeMessage)o).getIds());
+		} else if (o instanceof AssignmentMessage) {
+			AssignmentMessage am = (AssignmentMessage)o;
+			int[] ids = am.getIds();
+			synchronized(this.inQueue) {
+				for (int id : ids) { 
+					this.inQueue.add(id); 
 				}
-				this.statusLog.logStatus("Received " + ids.length + " ids to crawl.");
-				this.sending = true;
+				this.inQueue.notify();
 			}
+			this.statusLog.logStatus("Received " + ids.length + " ids to crawl.");
 		}
 	}
 	
-	// Grab results from queue, send out - send thread
-	public void sendResults() throws IOException {
-		if (this.sending) {
-			if (this.outQueue.size() > 0) {	
-				synchronized (this.outQueue) {					
-					// Clear queue
-					CrawlResult[] results = new CrawlResult[this.outQueue.size()];
-					for (int i = 0; i < results.length; i ++) { results[i] = this.outQueue.removeFirst(); }
-					
-					// Send message
-					CrawlResultMessage crm = new CrawlResultMessage(Secret.SECRET, results);
-					this.out.writeObject(crm);
-					this.out.flush();
-				}
-				
-				if (this.inQueue.size() + this.tasks.size() == 0) {
-					this.sending = false;
+	// Drop revoked ids still waiting in the queue - ones already started are crawled and sent as usual
+	private void revoke(int[] ids) {
+		HashSet<Integer> revoked = new HashSet<Integer>();
+		for (int id : ids) {
+			revoked.add(id);
+		}
+		int dropped = 0;
+		synchronized (this.inQueue) {
+			Iterator<Integer> iter = this.inQueue.iterator();
+			while (iter.hasNext()) {
+				if (revoked.remove(iter.next())) {
+					iter.remove();
+					dropped++;
 				}
-			}			
+			}
+		}
+		if (dropped > 0) {
+			synchronized (this.outQueue) {
+				this.revokedCount += dropped;
+				this.windowChanged = true;
+				this.outQueue.notify();
+			}
+		}
+		this.statusLog.logStatus("Revoked " + ids.length + " ids, " + dropped + " not yet started.");
+	}
+	
+	// Wait for results on the queue, send them out - send thread
+	public void sendResults() throws IOException, InterruptedException {
+		CrawlResult[] results;
+		long window;
+		synchronized (this.outQueue) {
+			while (this.outQueue.size() == 0 && !this.windowChanged) {
+				this.outQueue.wait();
+			}
+			
+			// Clear queue
+			results = new CrawlResult[this.outQueue.size()];
+			for (int i = 0; i < results.length; i ++) { results[i] = this.outQueue.removeFirst(); }
+			window = this.crawlCount + this.revokedCount + WINDOW;
+			this.windowChanged = false;
 		}
+		
+		// Send message, advertising room for more ids as results complete or are revoked
+		MessageCodec.write(this.out, new CrawlResultMessage(results, window), this.session);
 	}
 		
 	
@@ -137,47 +176,30 @@ public class Worker {
 		long beginTime = System.currentTimeMillis();
 		
 		if (this.connected) {			
-			this.statusLog.logStatus("Worker connected!");
+			this.statusLog.logStatus("Worker connected with " + this.accounts.size() + " accounts!");
 			
 			// Start receive and send threads			
-			this.threadPool.execute(new SocketThread(this));
-			int runningCount = 0;
+			this.threadPool.execute(new ReceiveThread(this));
+			this.threadPool.execute(new SendThread(this));
 			this.crawlCount = 0;
 			
 			try {
-				while (this.connected) {								
-					// Spawn any new crawler tasks necessary
-					while (this.inQueue.size() > 0 && runningCount < MAX_CONCURRENCY) {
-						synchronized(this.inQueue) {
-							int nextId = this.inQueue.removeFirst();
-							CrawlTask task = new CrawlTask(nextId, this.username, this.password);
-							this.threadPool.execute(task);
-							this.tasks.add(task);
-							runningCount++;
+				while (this.connected) {
+					// Wait for an id
+					int nextId;
+					synchronized (this.inQueue) {
+						while (this.inQueue.size() == 0 && this.connected) {
+							this.inQueue.wait();
 						}
-						Thread.sleep(SLEEP_INTERVAL);
-					}
-				
-					// Loop through current tasks, writing results to outQueue and popping as necessary
-					Iterator<CrawlTask> iter = this.tasks.iterator();
-					while (iter.hasNext()) {
-						CrawlTask task = iter.next();
-						if (task.isFinished()) {
-							synchronized(this.outQueue) {
-								this.outQueue.add(task.getResult());
-							}
-							iter.remove();
-							runningCount--;		
-							this.crawlCount++;
-							
-							// Log statement
-							if (this.crawlCount % 1000 == 0 && this.crawlCount > 0) {
-								long currentTime = System.currentTimeMillis();
-								this.statusLog.logStatus("Crawled " + crawlCount + " in " + ((currentTime - beginTime)/1000) + " seconds.");
-							}
+						if (!this.connected) {
+							break;
 						}
+						nextId = this.inQueue.removeFirst();
 					}
-					Thread.sleep(500);
+					
+					// Wait for a free slot, then start the task
+					this.slots.acquire();
+					new CrawlTask(nextId, this.accounts).start(chunk -> this.send(chunk)).thenAccept(result -> this.complete(result, beginTime));
 				}
 				
 				// We're done, so clean up
@@ -191,28 +213,45 @@ public class Worker {
 		}
 	}
 	
+	// Queue a result or partial chunk for sending
+	private void send(CrawlResult result) {
+		synchronized(this.outQueue) {
+			this.outQueue.add(result);
+			this.outQueue.notify();
+		}
+	}
+	
+	// Task completion - free the slot and queue the result for sending
+	private void complete(CrawlResult result, long beginTime) {
+		this.slots.release();
+		long count;
+		synchronized(this.outQueue) {
+			this.outQueue.add(result);
+			this.outQueue.notify();
+			count = ++this.crawlCount;
+		}
+		
+		// Log statement
+		if (count % 1000 == 0) {
+			long currentTime = System.currentTimeMillis();
+			this.statusLog.logStatus("Crawled " + count + " in " + ((currentTime - beginTime)/1000) + " seconds.");
+		}
+	}
+	
 	public void stop() {
 		try {
 			this.connected = false;
+			
+			// Wake the main thread, whether it waits for ids or for a slot
+			synchronized (this.inQueue) {
+				this.inQueue.notify();
+			}
+			this.slots.release(MAX_CONCURRENCY);
 			this.in.close();
 			this.out.close();
 		} catch (IOException e) {}
 	}
 	
-	// We don't need to synchronize the worker version - only one thread trades messages
-	public boolean validate(Message m) {
-		if (this.usedPads.contains(m.getPad()) || !m.valid(Secret.SECRET)) {
-			return false;
-		} else {
-			this.usedPads.add(m.getPad());
-			return true;
-		}
-	}
-	
-	public boolean isSending() {
-		return this.sending;
-	}
-	
 	// Testing program
 	public static void main(String[] args) throws UnknownHostException {
 		/*
@@ -220,9 +259,19 @@ public class Worker {
 		w.start();
 		*/
 		
-		if (args.length == 4) {
+		if (args.length == 3 || args.length == 4) {
 			while (true) {
-				Worker w =  new Worker(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+				Worker w;
+				if (args.length == 4) {
+					w = new Worker(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+				} else {
+					try {
+						w = new Worker(args[0], Integer.parseInt(args[1]), AccountPool.load(args[2], REQUESTS_PER_HOUR));
+					} catch (IOException e) {
+						System.out.println("Could not read accounts: " + e);
+						break;
+					}
+				}
 				w.start();
 				Runtime.getRuntime().gc();
 				try {
@@ -235,27 +284,47 @@ public class Worker {
 		} else {
 			System.out.println("Don't forget to use -XmsM and -XmxM options, where M is like 256m, 1g, etc.");
 			System.out.println("Usage: hostname port username password");
+			System.out.println("   or: hostname port accountsFile, with one \"username password\" per line");
 		}
 	}
 }
 
-class SocketThread implements Runnable {
+// Blocks on the socket for assignments
+class ReceiveThread implements Runnable {
 	private Worker worker;
-	SocketThread(Worker worker) {
+	ReceiveThread(Worker worker) {
 		this.worker = worker;
 	}
 	
 	public void run() {
 		while (true) {
 			try {
-				if (this.worker.isSending()) {
-					this.worker.sendResults();
-					Thread.sleep(2000);
-				} else {
-					this.worker.receiveIds();
-				}
+				this.worker.receiveIds();
+			} catch (Exception e) {
+				System.out.println("Error in receive thread: " + e);
+				e.printStackTrace();
+				this.worker.stop();
+				break;
+			}
+		}
+	}	
+}
+
+// Sends results as soon as they are on the out queue
+class SendThread implements Runnable {
+	private Worker worker;
+	SendThread(Worker worker) {
+		this.worker = worker;
+	}
+	
+	public void run() {
+		while (true) {
+			try {
+				this.worker.sendResults();
+			} catch (InterruptedException e) {
+				break;
 			} catch (Exception e) {
-				System.out.println("Error in socket thread: " + e);
+				System.out.println("Error in send thread: " + e);
 				e.printStackTrace();
 				this.worker.stop();
 				break;